@@ -0,0 +1,160 @@
+package microtubules;
+
+import java.util.Random;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+public class CometMovie {
+	// A synthetic movie of microtubule comets (EB comets): bright Gaussian heads with a fading tail behind them,
+	// moving in slowly turning directions, on a noisy background. Everything is made from a seed, so a movie with
+	// the same seed and size is always the same. The true positions and track ids are known (ground truth).
+	// Comets that leave the frame or reach the end of their life are replaced by new ones, so the density
+	// (comets per frame) stays the same.
+
+	public double speed = 3;			// mean speed, pixels per frame
+	public double sigma = 1.5;			// width of the head
+	public double tail = 4;				// length of the tail, pixels
+	public double amplitude = 100;
+	public double background = 10;
+	public double noise = 5;			// standard deviation of the Gaussian noise
+	public int minLifetime = 5;
+	public int maxLifetime = 20;		// frames
+
+	private long seed;
+	private int width;
+	private int height;
+	private int frames;
+	private int comets;
+
+	// Ground truth, per frame and comet
+	private float[][] x;
+	private float[][] y;
+	private float[][] dx;				// direction of movement (unit vector)
+	private float[][] dy;
+	private int[][] id;
+
+	public CometMovie(long seed, int width, int height, int frames, int comets) {
+		this.seed = seed;
+		this.width = width;
+		this.height = height;
+		this.frames = frames;
+		this.comets = comets;
+	}
+
+	public CometMovie generate() {
+		// Make the trajectories (call after changing the public fields)
+		Random random = new Random(seed);
+		x = new float[frames][comets];
+		y = new float[frames][comets];
+		dx = new float[frames][comets];
+		dy = new float[frames][comets];
+		id = new int[frames][comets];
+		double[] px = new double[comets];
+		double[] py = new double[comets];
+		double[] angle = new double[comets];
+		double[] v = new double[comets];
+		int[] life = new int[comets];
+		int[] track = new int[comets];
+		int tracks = 0;
+		for (int t = 0; t < frames; t++) {
+			for (int k = 0; k < comets; k++) {
+				if (t > 0) {
+					angle[k] += 0.1 * random.nextGaussian();
+					px[k] += v[k] * Math.cos(angle[k]);
+					py[k] += v[k] * Math.sin(angle[k]);
+					life[k]--;
+				}
+				if (t == 0 || life[k] <= 0 || px[k] < 0 || px[k] >= width || py[k] < 0 || py[k] >= height) {
+					// A new comet
+					px[k] = random.nextDouble() * width;
+					py[k] = random.nextDouble() * height;
+					angle[k] = random.nextDouble() * 2 * Math.PI;
+					v[k] = Math.max(0.5, speed + 0.5 * random.nextGaussian());
+					life[k] = minLifetime + random.nextInt(maxLifetime - minLifetime + 1);
+					track[k] = tracks++;
+				}
+				x[t][k] = (float) px[k];
+				y[t][k] = (float) py[k];
+				dx[t][k] = (float) Math.cos(angle[k]);
+				dy[t][k] = (float) Math.sin(angle[k]);
+				id[t][k] = track[k];
+			}
+		}
+		return this;
+	}
+
+	public FloatProcessor frame(int t) {
+		// Frame t: background with noise, plus every comet. The noise of a frame only depends on the seed and t.
+		Random random = new Random(seed * 31 + t);
+		float[] pixels = new float[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (float) (background + noise * random.nextGaussian());
+		double reach = 3 * sigma;
+		for (int k = 0; k < comets; k++) {
+			// The intensity falls off with the distance to the segment from the head to the end of the tail,
+			// and fades along the tail.
+			double hx = x[t][k];
+			double hy = y[t][k];
+			double ux = -dx[t][k];
+			double uy = -dy[t][k];
+			int x0 = Math.max(0, (int) Math.floor(Math.min(hx, hx + tail * ux) - reach));
+			int x1 = Math.min(width - 1, (int) Math.ceil(Math.max(hx, hx + tail * ux) + reach));
+			int y0 = Math.max(0, (int) Math.floor(Math.min(hy, hy + tail * uy) - reach));
+			int y1 = Math.min(height - 1, (int) Math.ceil(Math.max(hy, hy + tail * uy) + reach));
+			for (int py = y0; py <= y1; py++) {
+				for (int px = x0; px <= x1; px++) {
+					double rx = px - hx;
+					double ry = py - hy;
+					double s = Math.max(0, Math.min(tail, rx * ux + ry * uy));
+					double ex = rx - s * ux;
+					double ey = ry - s * uy;
+					double fade = 1 - 0.7 * s / tail;
+					pixels[py * width + px] += (float) (amplitude * fade * Math.exp(-(ex * ex + ey * ey) / (2 * sigma * sigma)));
+				}
+			}
+		}
+		return new FloatProcessor(width, height, pixels);
+	}
+
+	public ImageStack stack() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++)
+			stack.addSlice(frame(t));
+		return stack;
+	}
+
+	public SpotTable spots() {
+		// The true comet heads as detected spots (without track ids): comet k of frame t is row t * comets + k.
+		SpotTable spots = new SpotTable(0, frames * comets);
+		for (int t = 0; t < frames; t++) {
+			spots.addFrame();
+			for (int k = 0; k < comets; k++) {
+				int row = spots.add(Math.round(x[t][k]), Math.round(y[t][k]), (float) amplitude);
+				spots.setFeatures(row, (float) (amplitude + background), (float) (0.8 * amplitude + background), x[t][k], y[t][k]);
+			}
+		}
+		return spots;
+	}
+
+	public int trackId(int t, int k) {
+		// True track of comet k in frame t
+		return id[t][k];
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	public int frames() {
+		return frames;
+	}
+
+	public int comets() {
+		return comets;
+	}
+}
@@ -0,0 +1,64 @@
+package microtubules;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.FloatProcessor;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+	// Spot detection on one frame of a synthetic comet movie: DoG, local maxima and the neighbour filter.
+
+	private static final double SIGMA = 3;
+	private static final double THRESHOLD = 5;
+	private static final int NBH = 5;
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"500", "5000"})
+	public int comets;
+
+	private SpotDetector detector = new SpotDetector();
+	private FloatProcessor frame;
+	private FloatProcessor dog;
+	private SpotTable candidates;
+
+	@Setup
+	public void setup() {
+		frame = new CometMovie(42, size, size, 1, comets).generate().frame(0);
+		dog = detector.dog(frame, SIGMA);
+		candidates = detector.localMax(dog, NBH, THRESHOLD, 0);
+	}
+
+	@Benchmark
+	public FloatProcessor dog() {
+		return detector.dog(frame, SIGMA);
+	}
+
+	@Benchmark
+	public SpotTable localMax() {
+		return detector.localMax(dog, NBH, THRESHOLD, 0);
+	}
+
+	@Benchmark
+	public SpotTable filter() {
+		return detector.filter(candidates, NBH);
+	}
+}
@@ -0,0 +1,158 @@
+package microtubules;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackingBenchmark {
+	// Linking of the true comet heads of a synthetic movie: the cost matrix of one pair of frames,
+	// nearest neighbour linking of that pair, and the trajectory statistics of the spots of one frame.
+	// The last pair of frames is used, so the spots have a history (speed and angle) as in a real run.
+
+	private static final int FRAMES = 10;
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"500", "5000"})
+	public int comets;
+
+	private SpotTracker tracker = new SpotTracker();
+	private TrackingParameters p = new TrackingParameters();
+	private SpotTable movie;			// never linked; every state links its own copy
+	private int t = FRAMES - 2;
+
+	@Setup
+	public void setup() {
+		movie = new CometMovie(42, size, size, FRAMES, comets).generate().spots();
+	}
+
+	private void link(SpotTable spots, TrackStore tracks, int f) {
+		tracker.nearestNeighbourLinking(cost(spots, tracks, f), spots, tracks, f, p.maxSpotMovement);
+	}
+
+	private SparseCostMatrix cost(SpotTable spots, TrackStore tracks, int f) {
+		return tracker.getCostMatrix(spots, tracks, f, p.maxSpotMovement, p.betaDist, p.betaIntensity, p.betaSpeed, p.betaAngle);
+	}
+
+	@State(Scope.Thread)
+	public static class Costs {
+		// A copy of the movie with all frames up to t linked
+		SpotTable spots;
+		TrackStore tracks;
+
+		@Setup
+		public void setup(TrackingBenchmark benchmark) {
+			spots = SpotTable.copyOf(benchmark.movie);
+			tracks = new TrackStore(spots, benchmark.p.numberOfFramesInPast);
+			for (int f = 0; f < benchmark.t; f++)
+				benchmark.link(spots, tracks, f);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Linking {
+		// Frames t and t+1 of a copy of the movie in a window, with the earlier frames linked once. Every call links
+		// the window in a new TrackStore that continues the tracks of frame t, as the OnlineTracker does for every frame.
+		// The histories are reused, so they move on by one position per call; the links and the work do not change,
+		// because the costs come from the speed and angle that are set with continueTrack.
+		SpotTable window;
+		SparseCostMatrix costs;
+		int past;
+		int trackCount;
+		int[] trackId;
+		int[] length;
+		double[] speed;
+		double[] heading;
+		TrackHistory[] history;
+
+		@Setup
+		public void setup(TrackingBenchmark benchmark) {
+			int t = benchmark.t;
+			past = benchmark.p.numberOfFramesInPast;
+			SpotTable spots = SpotTable.copyOf(benchmark.movie);
+			TrackStore prefix = new TrackStore(spots, past);
+			for (int f = 0; f < t; f++)
+				benchmark.link(spots, prefix, f);
+			window = new SpotTable(t, spots.frameSize(t) + spots.frameSize(t + 1));
+			for (int f = t; f <= t + 1; f++) {
+				window.addFrame();
+				for (int i = spots.frameStart(f); i < spots.frameEnd(f); i++)
+					window.addFrom(spots, i);
+			}
+			int n = spots.frameSize(t);
+			trackCount = prefix.trackCount();
+			trackId = new int[n];
+			length = new int[n];
+			speed = new double[n];
+			heading = new double[n];
+			history = new TrackHistory[n];
+			for (int k = 0; k < n; k++) {
+				int i = spots.frameStart(t) + k;
+				trackId[k] = spots.trackId(i);
+				length[k] = prefix.trackLength(i);
+				speed[k] = prefix.speed(i);
+				heading[k] = prefix.heading(i);
+				history[k] = prefix.history(spots, i);
+			}
+			costs = benchmark.cost(window, continueTracks(), t);
+		}
+
+		TrackStore continueTracks() {
+			// A new store for the window, with the tracks that end in frame t
+			TrackStore tracks = new TrackStore(window, past);
+			for (int k = 0; k < trackId.length; k++) {
+				window.setTrackId(k, trackId[k]);
+				tracks.continueTrack(window, k, length[k], speed[k], heading[k], history[k]);
+			}
+			tracks.setTrackCount(trackCount);
+			return tracks;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Tracked {
+		// A copy of the movie with all frames linked
+		TrackStore tracks;
+
+		@Setup
+		public void setup(TrackingBenchmark benchmark) {
+			tracks = benchmark.tracker.track(SpotTable.copyOf(benchmark.movie), benchmark.p);
+		}
+	}
+
+	@Benchmark
+	public SparseCostMatrix getCostMatrix(Costs state) {
+		return cost(state.spots, state.tracks, t);
+	}
+
+	@Benchmark
+	public TrackStore nearestNeighbourLinking(Linking state) {
+		TrackStore tracks = state.continueTracks();
+		tracker.nearestNeighbourLinking(state.costs, state.window, tracks, t, p.maxSpotMovement);
+		return tracks;
+	}
+
+	@Benchmark
+	public void trajectoryStatistics(Tracked state, Blackhole blackhole) {
+		for (int i = movie.frameStart(t); i < movie.frameEnd(t); i++)
+			blackhole.consume(state.tracks.trajectoryStatistics(i));
+	}
+}
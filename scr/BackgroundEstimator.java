@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImageStack;
+
+public class BackgroundEstimator {
+	// Temporal median of a movie, used as the background that is subtracted from every frame.
+	// The image is split into bands of rows that are processed in parallel. The time series of the pixels
+	// of a band are copied next to each other, and the median of each series is found with a histogram (8-bit)
+	// or with quickselect (16-bit and 32-bit), instead of sorting it.
+	// For an even number of frames the median is the mean of the two middle values.
+
+	private static final int BAND_VALUES = 1 << 22;		// maximal number of values copied per band
+
+	public float[] median(ImageStack stack, int nt, int nThreads) {
+		// Median of the first nt slices of the stack, for every pixel.
+		int nx = stack.getWidth();
+		int ny = stack.getHeight();
+		Object[] frames = new Object[nt];
+		for (int t = 0; t < nt; t++)
+			frames[t] = stack.getPixels(t + 1);
+		return median(frames, nx, ny, nThreads);
+	}
+
+	public float[] median(float[][] frames, int nx, int ny, int nThreads) {
+		return median((Object[]) frames, nx, ny, nThreads);
+	}
+
+	private float[] median(Object[] frames, int nx, int ny, int nThreads) {
+		float[] background = new float[nx * ny];
+		int nt = frames.length;
+		if (nt == 0)
+			return background;
+		nThreads = Math.max(1, nThreads);
+		// Enough bands to keep all threads busy, but small enough that a band's time series fit in the cache
+		int bandRows = Math.max(1, Math.min((ny + 4 * nThreads - 1) / (4 * nThreads), BAND_VALUES / Math.max(1, nx * nt)));
+		if (nThreads == 1) {
+			for (int y0 = 0; y0 < ny; y0 += bandRows)
+				medianBand(frames, nx, y0, Math.min(ny, y0 + bandRows), background);
+			return background;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int y0 = 0; y0 < ny; y0 += bandRows) {
+				final int from = y0;
+				final int to = Math.min(ny, y0 + bandRows);
+				futures.add(pool.submit(() -> medianBand(frames, nx, from, to, background)));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Background estimation was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Background estimation failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return background;
+	}
+
+	private void medianBand(Object[] frames, int nx, int y0, int y1, float[] background) {
+		// Median of the pixels in rows y0 ... y1-1.
+		int nt = frames.length;
+		int from = y0 * nx;
+		int n = (y1 - y0) * nx;
+		if (frames[0] instanceof byte[]) {
+			// 8-bit: count the values of each pixel in a histogram
+			int[] values = new int[n * nt];
+			for (int t = 0; t < nt; t++) {
+				byte[] pixels = (byte[]) frames[t];
+				for (int p = 0; p < n; p++)
+					values[p * nt + t] = pixels[from + p] & 0xff;
+			}
+			int[] histogram = new int[256];
+			for (int p = 0; p < n; p++)
+				background[from + p] = histogramMedian(values, p * nt, nt, histogram);
+		}
+		else if (frames[0] instanceof short[]) {
+			int[] values = new int[n * nt];
+			for (int t = 0; t < nt; t++) {
+				short[] pixels = (short[]) frames[t];
+				for (int p = 0; p < n; p++)
+					values[p * nt + t] = pixels[from + p] & 0xffff;
+			}
+			for (int p = 0; p < n; p++)
+				background[from + p] = selectMedian(values, p * nt, nt);
+		}
+		else if (frames[0] instanceof float[]) {
+			float[] values = new float[n * nt];
+			for (int t = 0; t < nt; t++) {
+				float[] pixels = (float[]) frames[t];
+				for (int p = 0; p < n; p++)
+					values[p * nt + t] = pixels[from + p];
+			}
+			for (int p = 0; p < n; p++)
+				background[from + p] = selectMedian(values, p * nt, nt);
+		}
+		else {
+			throw new IllegalArgumentException("RGB images are not supported");
+		}
+	}
+
+	private float histogramMedian(int[] values, int from, int n, int[] histogram) {
+		for (int k = from; k < from + n; k++)
+			histogram[values[k]]++;
+		// Walk up to the middle value(s)
+		int upper = n / 2;
+		int lower = (n % 2 == 1) ? upper : upper - 1;
+		int lowerValue = -1;
+		int upperValue = -1;
+		int count = 0;
+		for (int v = 0; v < histogram.length && upperValue < 0; v++) {
+			count += histogram[v];
+			if (lowerValue < 0 && count > lower)
+				lowerValue = v;
+			if (count > upper)
+				upperValue = v;
+		}
+		// Clear only the bins that were used
+		for (int k = from; k < from + n; k++)
+			histogram[values[k]] = 0;
+		return 0.5f * (lowerValue + upperValue);
+	}
+
+	private float selectMedian(int[] a, int from, int n) {
+		int middle = from + n / 2;
+		select(a, from, from + n - 1, middle);
+		if (n % 2 == 1)
+			return a[middle];
+		// After selection, the values before the middle are smaller than or equal to it
+		int below = a[from];
+		for (int k = from + 1; k < middle; k++)
+			below = Math.max(below, a[k]);
+		return 0.5f * (below + a[middle]);
+	}
+
+	private float selectMedian(float[] a, int from, int n) {
+		int middle = from + n / 2;
+		select(a, from, from + n - 1, middle);
+		if (n % 2 == 1)
+			return a[middle];
+		float below = a[from];
+		for (int k = from + 1; k < middle; k++)
+			below = Math.max(below, a[k]);
+		return 0.5f * (below + a[middle]);
+	}
+
+	private void select(int[] a, int lo, int hi, int k) {
+		// Quickselect: reorder a[lo..hi] so that a[k] is the value that would be there after sorting.
+		while (hi > lo) {
+			int pivot = a[lo + (hi - lo) / 2];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (a[i] < pivot)
+					i++;
+				while (a[j] > pivot)
+					j--;
+				if (i <= j) {
+					int swap = a[i];
+					a[i++] = a[j];
+					a[j--] = swap;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void select(float[] a, int lo, int hi, int k) {
+		while (hi > lo) {
+			float pivot = a[lo + (hi - lo) / 2];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (a[i] < pivot)
+					i++;
+				while (a[j] > pivot)
+					j--;
+				if (i <= j) {
+					float swap = a[i];
+					a[i++] = a[j];
+					a[j--] = swap;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+}
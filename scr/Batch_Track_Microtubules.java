@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.plugin.PlugIn;
+
+public class Batch_Track_Microtubules implements PlugIn {
+	// Tracks all movies (.tif) of a directory without opening any windows.
+	// The parameters are read from a parameter file (see TrackingParameters), and the spots and tracks
+	// of every movie are written to <movie>_spots.csv in the output directory, and one row per track to <movie>_tracks.csv.
+	// All spots and tracks are also kept in <movie>.tracks (see TrackFile), which Show_Tracks can open again.
+	// The time, allocations and counts of every stage and frame are written to <movie>_metrics.json and <movie>_metrics.csv.
+	//
+	// Headless use:
+	//		java -cp ij.jar:<plugin classes> Batch_Track_Microtubules <parameter file> <input directory> [<output directory>]
+	//
+	// Movies are processed concurrently: files are read and results written on a small I/O pool,
+	// while denoising, detection and linking run on a compute pool with one thread per core.
+	// At most (compute threads + 1) movies are in memory at the same time.
+	// Movies are always processed in streaming mode, which does not need the GUI and keeps memory per movie low.
+	// Detected spots are kept in a DetectionCache, so running the batch again with other tracking parameters only links.
+
+	private int computeThreads = Prefs.getThreads();
+	private int ioThreads = 2;
+	private DetectionCache cache = DetectionCache.defaultCache();	// null: always detect
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: Batch_Track_Microtubules <parameter file> <input directory> [<output directory>]");
+			System.exit(2);
+		}
+		File output = new File((args.length > 2) ? args[2] : args[1]);
+		int failed;
+		try {
+			TrackingParameters p = TrackingParameters.load(args[0]);
+			failed = new Batch_Track_Microtubules().process(p, new File(args[1]), output);
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			failed = 1;
+		}
+		System.exit((failed > 0) ? 1 : 0);
+	}
+
+	public void run(String arg) {
+		// From the ImageJ menu: ask for the parameter file and the directories.
+		String parameterFile = IJ.getFilePath("Parameter file");
+		if (parameterFile == null)
+			return;
+		String input = IJ.getDirectory("Directory with movies");
+		if (input == null)
+			return;
+		String output = IJ.getDirectory("Output directory");
+		if (output == null)
+			return;
+		try {
+			process(TrackingParameters.load(parameterFile), new File(input), new File(output));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			IJ.error("Batch tracking", e.getMessage());
+		}
+	}
+
+	public void setThreads(int computeThreads, int ioThreads) {
+		this.computeThreads = Math.max(1, computeThreads);
+		this.ioThreads = Math.max(1, ioThreads);
+	}
+
+	public void setCache(DetectionCache cache) {
+		this.cache = cache;
+	}
+
+	public int process(TrackingParameters p, File inputDir, File outputDir) throws IOException {
+		// Track all movies in inputDir. Returns the number of movies that failed.
+		File[] movies = inputDir.listFiles((dir, name) -> {
+			String lower = name.toLowerCase();
+			return lower.endsWith(".tif") || lower.endsWith(".tiff");
+		});
+		if (movies == null)
+			throw new IOException("Not a directory: " + inputDir);
+		Arrays.sort(movies);
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new IOException("Cannot create output directory " + outputDir);
+
+		ExecutorService ioPool = Executors.newFixedThreadPool(ioThreads);
+		ExecutorService computePool = Executors.newFixedThreadPool(computeThreads);
+		Semaphore inMemory = new Semaphore(computeThreads + 1);
+		AtomicInteger failed = new AtomicInteger();
+		AtomicInteger done = new AtomicInteger();
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		IJ.log("Tracking " + movies.length + " movies with " + computeThreads + " threads ...");
+		try {
+			for (File movie : movies) {
+				inMemory.acquire();
+				String name = baseName(movie);
+				File tracksCsv = new File(outputDir, name + "_tracks.csv");
+				CompletableFuture<Result> tracked = CompletableFuture
+					.supplyAsync(() -> open(movie), ioPool)
+					.thenApplyAsync(imp -> track(imp, p, tracksCsv), computePool);
+				// The movie can be dropped once it is tracked, the results are small
+				tracked.whenComplete((result, error) -> inMemory.release());
+				futures.add(tracked
+					.thenAcceptAsync(result -> write(outputDir, name, result), ioPool)
+					.whenComplete((nothing, error) -> {
+						if (error != null) {
+							failed.incrementAndGet();
+							Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+							IJ.log(movie.getName() + " failed: " + cause);
+						}
+						else {
+							IJ.log(movie.getName() + " done (" + done.incrementAndGet() + "/" + movies.length + ")");
+						}
+					}));
+			}
+			for (CompletableFuture<Void> future : futures) {
+				try {
+					future.join();
+				}
+				catch (CompletionException e) {
+					// Already counted and logged
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch tracking was interrupted", e);
+		}
+		finally {
+			ioPool.shutdownNow();
+			computePool.shutdownNow();
+		}
+		IJ.log("Batch finished: " + done.get() + " movies tracked, " + failed.get() + " failed.");
+		return failed.get();
+	}
+
+	private ImagePlus open(File movie) {
+		ImagePlus imp = IJ.openImage(movie.getPath());
+		if (imp == null)
+			throw new CompletionException(new IOException("Cannot open " + movie));
+		// Stacks that were saved without dimensions have their frames as slices
+		if (imp.getNFrames() == 1 && imp.getNSlices() > 1)
+			imp.setDimensions(1, 1, imp.getNSlices());
+		return imp;
+	}
+
+	private Result track(ImagePlus imp, TrackingParameters p, File tracksCsv) {
+		// Spots of a movie that was detected before with the same parameters are read from the cache.
+		// The tracks are written (one row per track) while they are linked.
+		// Several movies are tracked at the same time, so they do not show progress.
+		RunMetrics metrics = new RunMetrics(imp.getNFrames());
+		metrics.setProgress(false);
+		metrics.begin(RunMetrics.DETECT);
+		String key = (cache != null) ? cache.key(imp, p, true) : null;
+		SpotTable spots = (cache != null) ? cache.get(key) : null;
+		if (spots == null) {
+			FramePipeline pipeline = new FramePipeline(p.sigmaXY, p.sigmaT, p.sigmaDOG, p.DOGthreshold, p.maxSpotDistance);
+			pipeline.setBackgroundWindow(p.backgroundWindow);
+			pipeline.setTileSize(p.tileSize);
+			pipeline.setMetrics(metrics);
+			spots = pipeline.run(imp);
+			if (cache != null)
+				cache.put(key, spots);
+		}
+		metrics.end(RunMetrics.DETECT);
+		imp.flush();
+		metrics.begin(RunMetrics.LINK);
+		try (TrackCsvWriter writer = new TrackCsvWriter(tracksCsv)) {
+			SpotTracker tracker = new SpotTracker();
+			tracker.setMetrics(metrics);
+			TrackStatistics statistics = new TrackStatistics(writer);
+			TrackStore tracks = tracker.track(spots, p, statistics);
+			metrics.end(RunMetrics.LINK);
+			if (statistics.sinkError() != null)
+				throw statistics.sinkError();
+			return new Result(spots, tracks, metrics);
+		}
+		catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private void write(File outputDir, String name, Result result) {
+		RunMetrics metrics = result.metrics;
+		try {
+			metrics.begin(RunMetrics.WRITE);
+			long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+			new ResultsWriter().writeSpots(new File(outputDir, name + "_spots.csv"), result.spots, result.tracks);
+			TrackFile.write(new File(outputDir, name + TrackFile.EXTENSION), result.spots, result.tracks);
+			metrics.record(RunMetrics.WRITE, -1, start, bytes);
+			metrics.end(RunMetrics.WRITE);
+			metrics.writeJson(new File(outputDir, name + "_metrics.json"));
+			metrics.writeCsv(new File(outputDir, name + "_metrics.csv"));
+		}
+		catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private String baseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+
+	private static class Result {
+		final SpotTable spots;
+		final TrackStore tracks;
+		final RunMetrics metrics;
+
+		Result(SpotTable spots, TrackStore tracks, RunMetrics metrics) {
+			this.spots = spots;
+			this.tracks = tracks;
+			this.metrics = metrics;
+		}
+	}
+}
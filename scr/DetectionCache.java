@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class DetectionCache {
+	// Detected spots on disk, so the tracking can be tuned again without denoising and detecting again.
+	// An entry is keyed by a hash of the pixels of the movie and of every parameter that changes the detected spots
+	// (denoising and detection, not tracking), and stored as a track file without links.
+	// The cache is kept below a maximal size by deleting the least recently used entries
+	// (the modification time of a file is updated whenever it is read).
+	// Reads, writes and evictions hold a lock shared by all caches in this JVM and a lock on the directory
+	// (for other processes), and entries used in the last RECENT_MS are never evicted,
+	// so an entry is not deleted while it is being read.
+
+	public static final long DEFAULT_MAX_BYTES = 1L << 30;
+	// Part of every key: increase it when the denoising or detection changes the spots it finds,
+	// so entries of the old code are not used again
+	private static final int ALGORITHM_VERSION = 1;
+	private static final long RECENT_MS = 60 * 1000;
+	private static final String LOCK_FILE = ".lock";
+	private static final Object LOCK = new Object();
+
+	private File directory;
+	private long maxBytes;
+
+	public DetectionCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public static DetectionCache defaultCache() {
+		// In the temporary directory, with at most DEFAULT_MAX_BYTES
+		return new DetectionCache(new File(System.getProperty("java.io.tmpdir"), "microtubule-detection-cache"), DEFAULT_MAX_BYTES);
+	}
+
+	public String key(ImagePlus imp, TrackingParameters p, boolean streaming) {
+		// SHA-256 of the algorithm version, the pixels (all slices, in order) and the denoising and detection parameters.
+		// The tile size is left out: tiled detection finds exactly the same spots.
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ImageStack stack = imp.getStack();
+		int nPixels = imp.getWidth() * imp.getHeight();
+		ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(ALGORITHM_VERSION).putInt(imp.getWidth()).putInt(imp.getHeight()).putInt(stack.getSize()).putInt(imp.getBitDepth());
+		digest.update(header.array(), 0, header.position());
+		ByteBuffer buffer = ByteBuffer.allocate(4 * nPixels).order(ByteOrder.LITTLE_ENDIAN);
+		for (int k = 1; k <= stack.getSize(); k++) {
+			Object pixels = stack.getPixels(k);
+			buffer.clear();
+			if (pixels instanceof byte[]) {
+				digest.update((byte[]) pixels);
+				continue;
+			}
+			else if (pixels instanceof short[]) {
+				buffer.asShortBuffer().put((short[]) pixels);
+				digest.update(buffer.array(), 0, 2 * nPixels);
+			}
+			else if (pixels instanceof float[]) {
+				buffer.asFloatBuffer().put((float[]) pixels);
+				digest.update(buffer.array(), 0, 4 * nPixels);
+			}
+			else {
+				buffer.asIntBuffer().put((int[]) pixels);
+				digest.update(buffer.array(), 0, 4 * nPixels);
+			}
+		}
+		header.clear();
+		header.putDouble(p.sigmaXY).putDouble(p.sigmaT).putInt(p.backgroundWindow).putInt(streaming ? 1 : 0)
+			  .putDouble(p.sigmaDOG).putDouble(p.DOGthreshold).putInt(p.maxSpotDistance);
+		digest.update(header.array(), 0, header.position());
+
+		StringBuilder key = new StringBuilder(64);
+		for (byte b : digest.digest())
+			key.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+		return key.toString();
+	}
+
+	public SpotTable get(String key) {
+		// The spots stored under key, or null if there are none (or the file cannot be read)
+		File file = file(key);
+		if (!file.isFile())
+			return null;
+		synchronized (LOCK) {
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lock(lockChannel);
+				try {
+					if (!file.isFile())
+						return null;
+					// Mark it as used first, so no one evicts it while it is read
+					file.setLastModified(System.currentTimeMillis());
+					try (TrackFile stored = TrackFile.open(file)) {
+						return SpotTable.copyOf(stored);
+					}
+				}
+				finally {
+					unlock(lock);
+				}
+			}
+			catch (IOException e) {
+				IJ.log("Detection cache: cannot read " + file + " (" + e.getMessage() + ")");
+				return null;
+			}
+		}
+	}
+
+	public void put(String key, SpotTable spots) {
+		// Store the spots under key, and delete the least recently used entries if the cache is too large.
+		// The cache only saves time, so if it cannot be written the tracking just goes on.
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			IJ.log("Detection cache: cannot create " + directory);
+			return;
+		}
+		File file = file(key);
+		synchronized (LOCK) {
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lock(lockChannel);
+				try {
+					TrackFile.write(file, spots, TrackFile.UNLINKED);
+					evict(file);
+				}
+				finally {
+					unlock(lock);
+				}
+			}
+			catch (IOException e) {
+				IJ.log("Detection cache: cannot write " + file + " (" + e.getMessage() + ")");
+			}
+		}
+	}
+
+	private FileLock lock(FileChannel lockChannel) {
+		// Lock the directory for other processes (null if the file system cannot lock files)
+		try {
+			return (lockChannel != null) ? lockChannel.lock() : null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void unlock(FileLock lock) {
+		// Release the lock of the directory (closing its channel releases it too)
+		try {
+			if (lock != null)
+				lock.release();
+		}
+		catch (IOException e) {
+			// Released when the channel is closed
+		}
+	}
+
+	private FileChannel openLock() {
+		// The lock file of the directory, or null if it cannot be made (then only this JVM is locked out)
+		try {
+			return FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private void evict(File keep) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(TrackFile.EXTENSION));
+		if (files == null)
+			return;
+		long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int k = 0; k < files.length; k++) {
+			lastModified[k] = files[k].lastModified();
+			order[k] = k;
+		}
+		// Most recently used first
+		Arrays.sort(order, (a, b) -> Long.compare(lastModified[b], lastModified[a]));
+		long bytes = 0;
+		long recent = System.currentTimeMillis() - RECENT_MS;
+		for (int k : order) {
+			bytes += files[k].length();
+			if (bytes > maxBytes && !files[k].equals(keep) && lastModified[k] < recent)
+				files[k].delete();
+		}
+	}
+
+	private File file(String key) {
+		return new File(directory, key + TrackFile.EXTENSION);
+	}
+}
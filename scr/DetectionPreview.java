@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import ij.process.ImageProcessor;
+
+public class DetectionPreview {
+	// Spot detection on one frame, for the live preview of the detection dialog.
+	// The intermediate results are cached, so a changed parameter only recomputes what depends on it:
+	//		sigma		-> Gaussian blurs (cached per sigma), DoG, candidates
+	//		nbh_size	-> candidates
+	//		threshold	-> nothing, the spots above it are a prefix of the candidates sorted by value
+	// Gives the same spots as SpotDetector.localMax + filter.
+
+	private static final int CACHED_BLURS = 8;
+
+	private DogFilter dogFilter = new DogFilter();
+	private LocalMaxFinder maxFinder = new LocalMaxFinder();
+	private SpotDetector detector = new SpotDetector();
+
+	private float[] pixels;
+	private int nx;
+	private int ny;
+	private Map<Double, float[]> blurs = new LinkedHashMap<Double, float[]>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Double, float[]> eldest) {
+			return size() > CACHED_BLURS;
+		}
+	};
+
+	private double dogSigma = Double.NaN;
+	private float[] dog;
+	private double candidateSigma = Double.NaN;
+	private int candidateNbh = -1;
+	private SpotTable candidates;			// all local maxima, in scan order
+	private long[] byValue;					// (value, row) of the candidates, sorted by increasing value
+
+	public DetectionPreview(ImageProcessor frame) {
+		nx = frame.getWidth();
+		ny = frame.getHeight();
+		pixels = new float[nx * ny];
+		for (int p = 0; p < pixels.length; p++)
+			pixels[p] = frame.getf(p);
+	}
+
+	public synchronized SpotTable detect(double sigma, double threshold, int nbh_size, BooleanSupplier cancelled) {
+		// Spots of the frame, or null if the computation was cancelled.
+		if (sigma != dogSigma) {
+			float[] blur1 = blur(sigma);
+			if (cancelled.getAsBoolean())
+				return null;
+			float[] blur2 = blur(Math.sqrt(2) * sigma);
+			if (cancelled.getAsBoolean())
+				return null;
+			if (dog == null)
+				dog = new float[pixels.length];
+			for (int p = 0; p < dog.length; p++)
+				dog[p] = blur1[p] - blur2[p];
+			dogSigma = sigma;
+			candidateSigma = Double.NaN;
+		}
+		if (sigma != candidateSigma || nbh_size != candidateNbh) {
+			findCandidates(nbh_size);
+			candidateSigma = sigma;
+			candidateNbh = nbh_size;
+			if (cancelled.getAsBoolean())
+				return null;
+		}
+
+		// Candidates above the threshold, back in scan order, then filtered as by SpotDetector.filter
+		int first = firstAbove(threshold);
+		int[] rows = new int[byValue.length - first];
+		for (int k = first; k < byValue.length; k++)
+			rows[k - first] = (int) byValue[k];
+		Arrays.sort(rows);
+		SpotTable localmax = new SpotTable(0, rows.length);
+		localmax.addFrame();
+		for (int row : rows)
+			localmax.addFrom(candidates, row);
+		return detector.filter(localmax, nbh_size);
+	}
+
+	private float[] blur(double sigma) {
+		float[] blurred = blurs.get(sigma);
+		if (blurred == null) {
+			blurred = new float[pixels.length];
+			dogFilter.blur(pixels, nx, ny, sigma, blurred);
+			blurs.put(sigma, blurred);
+		}
+		return blurred;
+	}
+
+	private void findCandidates(int nbh_size) {
+		// All local maxima, whatever their value, sorted by value.
+		candidates = new SpotTable(0);
+		candidates.addFrame();
+		maxFinder.find(dog, nx, ny, nbh_size, Double.NEGATIVE_INFINITY, candidates);
+		byValue = new long[candidates.size()];
+		for (int i = 0; i < byValue.length; i++)
+			byValue[i] = ((long) sortable(candidates.dog(i)) << 32) | i;
+		Arrays.sort(byValue);
+	}
+
+	private int firstAbove(double threshold) {
+		// Index of the first candidate in byValue with a value larger than threshold
+		int lo = 0;
+		int hi = byValue.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (candidates.dog((int) byValue[mid]) > threshold)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	private int sortable(float value) {
+		// Bits of a float that sort as signed ints in the same order as the floats
+		int bits = Float.floatToIntBits(value);
+		return (bits >= 0) ? bits : bits ^ 0x7fffffff;
+	}
+}
@@ -0,0 +1,154 @@
+import ij.process.ImageProcessor;
+
+public class DogFilter {
+	// Difference of Gaussian on primitive float arrays.
+	// The two Gaussian kernels are only computed when sigma changes, and all buffers
+	// are reused between frames, so filtering a movie does not create garbage per frame.
+	// A filter keeps state, so every thread should use its own filter.
+
+	private static final double ACCURACY = 0.0002;	// same kernel accuracy as ImageJ uses for float images
+
+	private double sigma1 = Double.NaN;
+	private double sigma2 = Double.NaN;
+	private float[] kernel1;						// Gaussian with sigma1
+	private float[] kernel2;						// Gaussian with sigma2
+	private float[] input = new float[0];			// frame converted to float (for 8- and 16-bit frames)
+	private float[] blur1 = new float[0];
+	private float[] blur2 = new float[0];
+	private float[] output = new float[0];
+	private float[] row1 = new float[0];
+	private float[] row2 = new float[0];
+
+	public float[] apply(ImageProcessor ip, double sigma) {
+		// DoG of one frame. The returned array is reused by the next call.
+		Object pixels = ip.getPixels();
+		int n = ip.getWidth() * ip.getHeight();
+		if (pixels instanceof float[])
+			return apply((float[]) pixels, ip.getWidth(), ip.getHeight(), sigma);
+		if (input.length < n)
+			input = new float[n];
+		for (int p = 0; p < n; p++)
+			input[p] = ip.getf(p);
+		return apply(input, ip.getWidth(), ip.getHeight(), sigma);
+	}
+
+	public float[] apply(float[] pixels, int nx, int ny, double sigma) {
+		// DoG of one frame: G(sigma) * pixels - G(sqrt(2) sigma) * pixels.
+		// The input is not modified. The returned array is reused by the next call.
+		return apply(pixels, nx, ny, sigma, Math.sqrt(2) * sigma);
+	}
+
+	public float[] apply(float[] pixels, int nx, int ny, double sigma1, double sigma2) {
+		// G(sigma1) * pixels - G(sigma2) * pixels.
+		// Blurring an image with G(s) before a DoG is the same as a DoG with sigmas sqrt(s^2 + sigma^2),
+		// so a blur and a DoG can be done in one filter.
+		setSigmas(sigma1, sigma2);
+		int n = nx * ny;
+		if (blur1.length < n) {
+			blur1 = new float[n];
+			blur2 = new float[n];
+			output = new float[n];
+		}
+		if (row1.length < nx) {
+			row1 = new float[nx];
+			row2 = new float[nx];
+		}
+		// Horizontal pass, for both kernels at once
+		for (int y = 0; y < ny; y++) {
+			convolveRow(pixels, y * nx, nx, kernel1, blur1);
+			convolveRow(pixels, y * nx, nx, kernel2, blur2);
+		}
+		// Vertical pass, row by row (so the arrays are read in memory order)
+		for (int y = 0; y < ny; y++) {
+			convolveColumns(blur1, nx, ny, y, kernel1, row1);
+			convolveColumns(blur2, nx, ny, y, kernel2, row2);
+			int offset = y * nx;
+			for (int x = 0; x < nx; x++)
+				output[offset + x] = row1[x] - row2[x];
+		}
+		return output;
+	}
+
+	public void blur(float[] pixels, int nx, int ny, double sigma, float[] out) {
+		// Gaussian blur of one frame into out (same values as the blurs inside apply).
+		int n = nx * ny;
+		if (blur1.length < n) {
+			blur1 = new float[n];
+			blur2 = new float[n];
+			output = new float[n];
+		}
+		if (row1.length < nx) {
+			row1 = new float[nx];
+			row2 = new float[nx];
+		}
+		float[] kernel = kernel(sigma);
+		for (int y = 0; y < ny; y++)
+			convolveRow(pixels, y * nx, nx, kernel, blur1);
+		for (int y = 0; y < ny; y++) {
+			convolveColumns(blur1, nx, ny, y, kernel, row1);
+			System.arraycopy(row1, 0, out, y * nx, nx);
+		}
+	}
+
+	public float[] kernel(double sigma) {
+		// Normalized Gaussian kernel, from -radius to +radius.
+		int radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(ACCURACY))) + 1;
+		float[] kernel = new float[2 * radius + 1];
+		double sum = 0;
+		for (int k = -radius; k <= radius; k++) {
+			double w = Math.exp(-0.5 * k * k / (sigma * sigma));
+			kernel[k + radius] = (float) w;
+			sum += w;
+		}
+		for (int k = 0; k < kernel.length; k++)
+			kernel[k] /= sum;
+		return kernel;
+	}
+
+	private void setSigmas(double sigma1, double sigma2) {
+		if (sigma1 == this.sigma1 && sigma2 == this.sigma2)
+			return;
+		this.sigma1 = sigma1;
+		this.sigma2 = sigma2;
+		kernel1 = kernel(sigma1);
+		kernel2 = kernel(sigma2);
+	}
+
+	private void convolveRow(float[] in, int offset, int nx, float[] kernel, float[] out) {
+		// 1D convolution of one row, pixels outside the frame are replaced by the edge pixel.
+		int radius = (kernel.length - 1) / 2;
+		for (int x = 0; x < nx; x++) {
+			float sum = 0;
+			if (x >= radius && x < nx - radius) {
+				// The kernel is symmetric, so pixels at the same distance share one multiplication
+				int center = offset + x;
+				sum = kernel[radius] * in[center];
+				for (int k = 1; k <= radius; k++)
+					sum += kernel[radius + k] * (in[center - k] + in[center + k]);
+			}
+			else {
+				for (int k = 0; k < kernel.length; k++) {
+					int xk = Math.max(0, Math.min(nx - 1, x + k - radius));
+					sum += kernel[k] * in[offset + xk];
+				}
+			}
+			out[offset + x] = sum;
+		}
+	}
+
+	private void convolveColumns(float[] in, int nx, int ny, int y, float[] kernel, float[] out) {
+		// 1D convolution along y, for all pixels of row y.
+		int radius = (kernel.length - 1) / 2;
+		float w = kernel[radius];
+		int center = y * nx;
+		for (int x = 0; x < nx; x++)
+			out[x] = w * in[center + x];
+		for (int k = 1; k <= radius; k++) {
+			int above = Math.max(0, y - k) * nx;
+			int below = Math.min(ny - 1, y + k) * nx;
+			w = kernel[radius + k];
+			for (int x = 0; x < nx; x++)
+				out[x] += w * (in[above + x] + in[below + x]);
+		}
+	}
+}
@@ -0,0 +1,361 @@
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.FloatProcessor;
+
+public class FramePipeline {
+	// Streaming version of the preprocessing + detection pipeline.
+	// Frames are pulled one by one from the original stack through
+	// denoising -> background subtraction -> DoG -> spot detection.
+	// Only a sliding window of (2 * ceil(3 sigmaT) + 1) original frames is kept (for a stack in memory these are
+	// the stack's own pixel arrays, not copies), plus a bounded number of frames that are sampled to estimate the background.
+	//
+	// Denoising, background subtraction and DoG are fused: all three are linear except for the median, so
+	//		DoG(G(sigmaXY) * I - B) = DoG'(I) - DoG(B)
+	// where I is the temporally blurred frame and DoG' has sigmas sqrt(sigmaXY^2 + sigmaDOG^2) and sqrt(sigmaXY^2 + 2 sigmaDOG^2).
+	// DoG(B) is computed once, so every frame is filtered once and the denoised frame is never made. The features of
+	// a spot (intensity of the denoised frame) are computed only in the pixels around the spot.
+	//
+	// With a rolling background, every frame gets the median of the backgroundWindow frames around it instead,
+	// and the denoised frames of that window are kept (sorted per pixel) while it slides over the movie.
+
+	private Denoiser denoiser = new Denoiser();
+	private SpotDetector detector = new SpotDetector();
+	private DogFilter dogFilter = new DogFilter();
+
+	private double sigmaXY;
+	private double sigmaT;
+	private double sigmaDOG;
+	private double DOGthreshold;
+	private int maxSpotDistance;
+	private int backgroundSamples = 25;		// maximal number of frames used for the median background
+	private int backgroundWindow = 0;		// frames in the rolling background (0 = one background for the whole movie)
+	private RunMetrics metrics = RunMetrics.disabled();
+	private int tileSize = 0;				// frames larger than this are filtered in tiles, in parallel (0 = never)
+	private ThreadLocal<DogFilter> tileFilter = ThreadLocal.withInitial(DogFilter::new);
+	private ThreadLocal<float[]> tileBuffer = ThreadLocal.withInitial(() -> new float[0]);
+	private float[] tiledDog = new float[0];
+
+	private ImageStack stack;
+	private int nx;
+	private int ny;
+	private int nt;
+	private float[] kernel;					// temporal Gaussian weights
+	private Object[] window;				// original frames, frame k is stored in slot k % window.length
+	private int[] windowFrame;				// frame stored in each slot (-1 if empty)
+
+	public FramePipeline(double sigmaXY, double sigmaT, double sigmaDOG, double DOGthreshold, int maxSpotDistance) {
+		this.sigmaXY = sigmaXY;
+		this.sigmaT = sigmaT;
+		this.sigmaDOG = sigmaDOG;
+		this.DOGthreshold = DOGthreshold;
+		this.maxSpotDistance = maxSpotDistance;
+	}
+
+	public void setBackgroundSamples(int backgroundSamples) {
+		this.backgroundSamples = Math.max(1, backgroundSamples);
+	}
+
+	public void setTileSize(int tileSize) {
+		// Filter frames larger than tileSize in tiles of this size, in parallel. The fused filter is computed per tile
+		// (see tiledDog), and with a rolling background the detector works in tiles (see SpotDetector.detectTiled).
+		this.tileSize = Math.max(0, tileSize);
+		detector.setTileSize(tileSize);
+	}
+
+	public void setBackgroundWindow(int backgroundWindow) {
+		this.backgroundWindow = Math.max(0, backgroundWindow);
+	}
+
+	public void setMetrics(RunMetrics metrics) {
+		// The fused filter does denoising, background subtraction and DoG at once, so its time is recorded as detection
+		this.metrics = metrics;
+		denoiser.setMetrics(metrics);
+		detector.setMetrics(metrics);
+	}
+
+	public SpotTable run(ImagePlus imp) {
+		// Detect spots in all frames of imp, without making a copy of the stack.
+		stack = imp.getStack();
+		nx = imp.getWidth();
+		ny = imp.getHeight();
+		nt = imp.getNFrames();
+		kernel = denoiser.temporalKernel(sigmaT);
+		window = new Object[Math.min(kernel.length, nt)];
+		windowFrame = new int[window.length];
+		Arrays.fill(windowFrame, -1);
+
+		SpotTable spots = (backgroundWindow > 0) ? detectWithRollingBackground() : detectWithBackground();
+
+		// Release the window
+		window = null;
+		stack = null;
+		return spots;
+	}
+
+	public float[] preprocessedFrame(ImagePlus imp, int t, BooleanSupplier cancelled) {
+		// Frame t denoised and with its background subtracted, as the detection sees it (without the fused DoG).
+		// Only the frames needed for the blur and background are read. Returns null if cancelled.
+		stack = imp.getStack();
+		nx = imp.getWidth();
+		ny = imp.getHeight();
+		nt = imp.getNFrames();
+		kernel = denoiser.temporalKernel(sigmaT);
+		window = new Object[Math.min(kernel.length, nt)];
+		windowFrame = new int[window.length];
+		Arrays.fill(windowFrame, -1);
+		try {
+			// Frames for the median: the window around t, or frames sampled evenly from the movie
+			int[] frames;
+			if (backgroundWindow > 0) {
+				int half = backgroundWindow / 2;
+				int first = Math.max(0, t - half);
+				frames = new int[Math.min(nt - 1, t + half) - first + 1];
+				for (int s = 0; s < frames.length; s++)
+					frames[s] = first + s;
+			}
+			else {
+				frames = new int[Math.min(nt, backgroundSamples)];
+				for (int s = 0; s < frames.length; s++)
+					frames[s] = (frames.length == 1) ? 0 : (int) Math.round((double) s * (nt - 1) / (frames.length - 1));
+			}
+			// The frames are smoothed in parallel, reading the stack directly instead of through the window
+			float[][] samples = new float[frames.length][];
+			IntStream.range(0, frames.length).parallel().forEach(s -> {
+				if (cancelled.getAsBoolean())
+					return;
+				samples[s] = new float[nx * ny];
+				int radius = (kernel.length - 1) / 2;
+				for (int k = -radius; k <= radius; k++)
+					addWeighted(stack.getPixels(Math.max(0, Math.min(nt - 1, frames[s] + k)) + 1), kernel[k + radius], samples[s]);
+				denoiser.blurFrame(samples[s], nx, ny, sigmaXY);
+			});
+			if (cancelled.getAsBoolean())
+				return null;
+			float[] background = new BackgroundEstimator().median(samples, nx, ny, Prefs.getThreads());
+			if (cancelled.getAsBoolean())
+				return null;
+			float[] frame = new float[nx * ny];
+			smoothedFrame(t, frame);
+			for (int p = 0; p < frame.length; p++)
+				frame[p] -= background[p];
+			return frame;
+		}
+		finally {
+			window = null;
+			stack = null;
+		}
+	}
+
+	private SpotTable detectWithBackground() {
+		IJ.log("Estimating background ...");
+		long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+		float[] background = estimateBackground();
+		float[] dogBackground = dogFilter.apply(background, nx, ny, sigmaDOG).clone();
+		metrics.record(RunMetrics.BACKGROUND, -1, start, bytes);
+
+		IJ.log("Detecting spots ...");
+		double sigma1 = Math.sqrt(sigmaXY * sigmaXY + sigmaDOG * sigmaDOG);
+		double sigma2 = Math.sqrt(sigmaXY * sigmaXY + 2 * sigmaDOG * sigmaDOG);
+		float[] gauss = (sigmaXY > 0) ? dogFilter.kernel(sigmaXY) : new float[] {1};
+		boolean tiled = tileSize > 0 && (nx > tileSize || ny > tileSize);
+		int halo = (dogFilter.kernel(sigma2).length - 1) / 2;
+		SpotTable spots = new SpotTable(0);
+		float[] frame = new float[nx * ny];
+		for (int t = 0; t < nt; t++) {
+			metrics.progress(t, nt);
+			start = RunMetrics.now();
+			bytes = RunMetrics.allocated();
+			temporalFrame(t, frame);
+			float[] dog = tiled ? tiledDog(frame, sigma1, sigma2, halo) : dogFilter.apply(frame, nx, ny, sigma1, sigma2);
+			for (int p = 0; p < dogBackground.length; p++)
+				dog[p] -= dogBackground[p];
+			SpotTable found = detector.maxima(dog, nx, ny, DOGthreshold, maxSpotDistance, t);
+			measure(found, frame, gauss, background, dog);
+			spots.append(found);
+			metrics.count(RunMetrics.SPOTS, t, found.size());
+			metrics.record(RunMetrics.DETECT, t, start, bytes);
+		}
+		metrics.progress(nt, nt);
+		return spots;
+	}
+
+	private SpotTable detectWithRollingBackground() {
+		// The window of frame t is t-half ... t+half (clipped to the movie).
+		// Frame t is taken from the window, so every frame is smoothed only once.
+		IJ.log("Detecting spots (rolling background) ...");
+		int half = backgroundWindow / 2;
+		RollingMedian rolling = new RollingMedian(nx * ny, 2 * half + 1);
+		SpotTable spots = new SpotTable(0);
+		float[] frame = new float[nx * ny];
+		float[] background = new float[nx * ny];
+		int first = 0;							// frame in the oldest slot of the window
+		for (int t = 0; t < Math.min(half, nt); t++) {
+			long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+			smoothedFrame(t, frame);
+			metrics.record(RunMetrics.DENOISE, t, start, bytes);
+			rolling.add(frame);
+		}
+		for (int t = 0; t < nt; t++) {
+			metrics.progress(t, nt);
+			long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+			if (t - half - 1 >= 0) {
+				rolling.removeOldest();
+				first++;
+			}
+			if (t + half < nt) {
+				smoothedFrame(t + half, frame);
+				metrics.record(RunMetrics.DENOISE, t + half, start, bytes);
+				start = RunMetrics.now();
+				bytes = RunMetrics.allocated();
+				rolling.add(frame);
+			}
+			rolling.median(background);
+			float[] smoothed = rolling.frame(t - first);
+			for (int p = 0; p < frame.length; p++)
+				frame[p] = smoothed[p] - background[p];
+			metrics.record(RunMetrics.BACKGROUND, t, start, bytes);
+			spots.append(detector.detect(new FloatProcessor(nx, ny, frame), sigmaDOG, DOGthreshold, maxSpotDistance, t));
+		}
+		metrics.progress(nt, nt);
+		return spots;
+	}
+
+	private float[] tiledDog(float[] frame, double sigma1, double sigma2, int halo) {
+		// The fused filter of a whole frame, computed in tiles of tileSize x tileSize pixels in parallel.
+		// Every tile is filtered with a halo as wide as the larger kernel, so the values inside the tile are exactly
+		// those of the whole frame (the edges of the frame are clamped the same way in both).
+		// The returned array is reused by the next call.
+		if (tiledDog.length != nx * ny)
+			tiledDog = new float[nx * ny];
+		float[] dog = tiledDog;
+		int tilesX = (nx + tileSize - 1) / tileSize;
+		int tilesY = (ny + tileSize - 1) / tileSize;
+		IntStream.range(0, tilesX * tilesY).parallel().forEach(k -> {
+			int x0 = (k % tilesX) * tileSize;
+			int y0 = (k / tilesX) * tileSize;
+			int x1 = Math.min(nx, x0 + tileSize);
+			int y1 = Math.min(ny, y0 + tileSize);
+			int rx0 = Math.max(0, x0 - halo);
+			int ry0 = Math.max(0, y0 - halo);
+			int w = Math.min(nx, x1 + halo) - rx0;
+			int h = Math.min(ny, y1 + halo) - ry0;
+			float[] pixels = tileBuffer.get();
+			if (pixels.length < w * h) {
+				pixels = new float[w * h];
+				tileBuffer.set(pixels);
+			}
+			for (int y = 0; y < h; y++)
+				System.arraycopy(frame, (ry0 + y) * nx + rx0, pixels, y * w, w);
+			float[] tile = tileFilter.get().apply(pixels, w, h, sigma1, sigma2);
+			for (int y = y0; y < y1; y++)
+				System.arraycopy(tile, (y - ry0) * w + (x0 - rx0), dog, y * nx + x0, x1 - x0);
+		});
+		return dog;
+	}
+
+	private float[] estimateBackground() {
+		// Temporal median of the denoised frames.
+		// For long movies the median is taken over evenly spaced frames,
+		// so memory is bounded by backgroundSamples frames.
+		int ns = Math.min(nt, backgroundSamples);
+		float[][] samples = new float[ns][];
+		for (int s = 0; s < ns; s++) {
+			int t = (ns == 1) ? 0 : (int) Math.round((double) s * (nt - 1) / (ns - 1));
+			samples[s] = new float[nx * ny];
+			smoothedFrame(t, samples[s]);
+		}
+		return new BackgroundEstimator().median(samples, nx, ny, Prefs.getThreads());
+	}
+
+	private void measure(SpotTable spots, float[] frame, float[] gauss, float[] background, float[] dog) {
+		// Features of the spots, as SpotDetector.measure would find them in the denoised, background subtracted frame.
+		// The spatial blur is only done in the 3x3 pixels around each spot.
+		int radius = (gauss.length - 1) / 2;
+		int size = 3 + 2 * radius;
+		float[] rows = new float[3 * size];		// frame blurred along x, in the columns x-1 ... x+1
+		for (int i = 0; i < spots.size(); i++) {
+			int x = spots.x(i);
+			int y = spots.y(i);
+			// Blur along x, for the rows y-1-radius ... y+1+radius (edges are clamped, as in the full blur)
+			for (int r = 0; r < size; r++) {
+				int yr = Math.max(0, Math.min(ny - 1, y - 1 - radius + r)) * nx;
+				for (int c = 0; c < 3; c++) {
+					int xc = Math.max(0, Math.min(nx - 1, x - 1 + c));
+					float sum = 0;
+					for (int k = 0; k < gauss.length; k++)
+						sum += gauss[k] * frame[yr + Math.max(0, Math.min(nx - 1, xc - radius + k))];
+					rows[c * size + r] = sum;
+				}
+			}
+			// Blur along y, and subtract the background
+			float peak = 0;
+			double sum = 0;
+			for (int dy = 0; dy < 3; dy++) {
+				int yd = Math.max(0, Math.min(ny - 1, y - 1 + dy));
+				for (int c = 0; c < 3; c++) {
+					int xc = Math.max(0, Math.min(nx - 1, x - 1 + c));
+					float value = 0;
+					for (int k = 0; k < gauss.length; k++)
+						value += gauss[k] * rows[c * size + dy + k];
+					value -= background[yd * nx + xc];
+					sum += value;
+					if (dy == 1 && c == 1)
+						peak = value;
+				}
+			}
+			spots.setFeatures(i, peak, (float) (sum / 9), detector.subPixelX(dog, nx, x, y), detector.subPixelY(dog, nx, ny, x, y));
+		}
+	}
+
+	private void smoothedFrame(int t, float[] out) {
+		// Spatio-temporal Gaussian blur of frame t.
+		temporalFrame(t, out);
+		denoiser.blurFrame(out, nx, ny, sigmaXY);
+	}
+
+	private void temporalFrame(int t, float[] out) {
+		// Weighted sum of the original frames around t (temporal Gaussian blur).
+		int radius = (kernel.length - 1) / 2;
+		Arrays.fill(out, 0);
+		for (int k = -radius; k <= radius; k++)
+			addWeighted(originalFrame(t + k), kernel[k + radius], out);
+	}
+
+	private void addWeighted(Object pixels, float w, float[] out) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int p = 0; p < out.length; p++)
+				out[p] += w * (bytes[p] & 0xff);
+		}
+		else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			for (int p = 0; p < out.length; p++)
+				out[p] += w * (shorts[p] & 0xffff);
+		}
+		else if (pixels instanceof float[]) {
+			float[] floats = (float[]) pixels;
+			for (int p = 0; p < out.length; p++)
+				out[p] += w * floats[p];
+		}
+		else {
+			throw new IllegalArgumentException("RGB images are not supported");
+		}
+	}
+
+	private Object originalFrame(int t) {
+		// Get the pixels of frame t from the window. Frames outside the movie are clamped to the edges.
+		t = Math.max(0, Math.min(nt - 1, t));
+		int slot = t % window.length;
+		if (windowFrame[slot] != t) {
+			window[slot] = stack.getPixels(t + 1);
+			windowFrame[slot] = t;
+		}
+		return window[slot];
+	}
+}
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Overlay;
+import ij.plugin.PlugIn;
+
+public class Live_Track_Microtubules implements PlugIn {
+	// Tracks the current movie while it is still being acquired (e.g. a stack that the microscope software
+	// keeps adding frames to). Every new frame is detected and linked right away with an OnlineTracker,
+	// and finished tracks are written to <movie>_tracks.csv. The spots of the newest frame are shown as overlay.
+	// Stops when Esc is pressed or the movie is closed.
+
+	private static final int POLL_MS = 200;		// wait this long before looking for new frames again
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+
+		// The same dialogs as Track_Microtubules (the streaming option is not used: frames are always streamed)
+		GenericDialog gd_denoise = new SetupDenoisingDialog().showDialog(imp);
+		if (gd_denoise.wasCanceled())
+			return;
+		TrackingParameters p = new TrackingParameters();
+		p.readDenoising(gd_denoise);
+		GenericDialog gd_detection = new SetupDetectionDialog().showDialog(imp, p);
+		if (gd_detection.wasCanceled())
+			return;
+		p.readDetection(gd_detection);
+
+		File tracksFile = Track_Microtubules.resultsFile(imp, "_tracks.csv");
+		IJ.log("Live tracking " + imp.getTitle() + " (press Esc to stop) ...");
+		IJ.resetEscape();
+		try (TrackCsvWriter writer = new TrackCsvWriter(tracksFile)) {
+			OnlineTracker tracker = new OnlineTracker(p, writer);
+			while (!IJ.escapePressed() && imp.getWindow() != null) {
+				int available = imp.getStackSize();
+				if (tracker.frames() >= available) {
+					IJ.wait(POLL_MS);
+					continue;
+				}
+				while (tracker.frames() < available && !IJ.escapePressed()) {
+					long start = System.nanoTime();
+					int t = tracker.frames();
+					SpotTable spots = tracker.addFrame(imp.getStack().getProcessor(t + 1));
+					Overlay overlay = new Overlay();
+					overlay.add(new SpotOverlayRoi(spots, null, imp.getWidth(), imp.getHeight()));
+					overlay.selectable(false);
+					imp.setOverlay(overlay);
+					IJ.showStatus("Frame " + (t + 1) + ": " + spots.size() + " spots, "
+								  + (System.nanoTime() - start) / 1000000 + " ms");
+				}
+			}
+			tracker.finish();
+			IJ.log(tracker.frames() + " frames tracked, " + tracker.tracks() + " tracks written to " + tracksFile);
+		}
+		catch (IOException | UncheckedIOException e) {
+			IJ.error("Live Track Microtubules", "Cannot write " + tracksFile + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,77 @@
+public class LocalMaxFinder {
+	// Local maximum detection with a separable running-max (van Herk / Gil-Werman) dilation.
+	// The cost per pixel does not depend on the neighbourhood size.
+	// Buffers are kept between calls, so one finder should be used by one thread at a time.
+
+	private float[] rowMax = new float[0];		// max over the horizontal window, for every pixel
+	private float[] nbhMax = new float[0];		// max over the (2 nbh_size + 1)^2 neighbourhood
+	private float[] g = new float[0];			// running max from the start of each block
+	private float[] h = new float[0];			// running max from the end of each block
+	private float[] line = new float[0];
+
+	public void find(float[] pixels, int nx, int ny, int nbh_size, double threshold, SpotTable spots) {
+		// Find local maxima and add them to the last frame of spots. Pixel values of maxima must be
+		// larger than threshold, and maxima cannot be further than nbh_size away from each other.
+		// Gives the same spots (in the same order) as a brute force scan of the neighbourhood.
+		if (nx <= 2 * nbh_size || ny <= 2 * nbh_size)
+			return;
+		dilate(pixels, nx, ny, nbh_size);
+		for (int x = nbh_size; x < nx - nbh_size; x++) {
+			for (int y = nbh_size; y < ny - nbh_size; y++) {
+				float v = pixels[y * nx + x];
+				// Maxima must be larger than threshold and be max in their neighborhood
+				// (the brute force scan starts its max at -1).
+				if (v > threshold) {
+					float max = Math.max(-1f, nbhMax[y * nx + x]);
+					if (v == max)
+						spots.add(x, y, v);
+				}
+			}
+		}
+	}
+
+	private void dilate(float[] pixels, int nx, int ny, int r) {
+		// Max over the (2r+1)^2 neighbourhood, only for pixels at least r away from the border.
+		int n = nx * ny;
+		if (rowMax.length < n) {
+			rowMax = new float[n];
+			nbhMax = new float[n];
+		}
+		int size = Math.max(nx, ny);
+		if (line.length < size) {
+			g = new float[size];
+			h = new float[size];
+			line = new float[size];
+		}
+		// Horizontal pass, on all rows (the vertical pass needs the rows above and below)
+		for (int y = 0; y < ny; y++) {
+			System.arraycopy(pixels, y * nx, line, 0, nx);
+			runningMax(line, nx, r);
+			for (int x = r; x < nx - r; x++)
+				rowMax[y * nx + x] = Math.max(h[x - r], g[x + r]);
+		}
+		// Vertical pass
+		for (int x = r; x < nx - r; x++) {
+			for (int y = 0; y < ny; y++)
+				line[y] = rowMax[y * nx + x];
+			runningMax(line, ny, r);
+			for (int y = r; y < ny - r; y++)
+				nbhMax[y * nx + x] = Math.max(h[y - r], g[y + r]);
+		}
+	}
+
+	private void runningMax(float[] values, int n, int r) {
+		// Fill g and h for blocks of width 2r+1.
+		// The max over [i-r, i+r] is then max(h[i-r], g[i+r]).
+		int w = 2 * r + 1;
+		for (int start = 0; start < n; start += w) {
+			int end = Math.min(start + w, n) - 1;
+			g[start] = values[start];
+			for (int i = start + 1; i <= end; i++)
+				g[i] = Math.max(g[i - 1], values[i]);
+			h[end] = values[end];
+			for (int i = end - 1; i >= start; i--)
+				h[i] = Math.max(h[i + 1], values[i]);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class OnlineTracker {
+	// Tracking while the movie is being acquired: every new frame is detected and linked to the previous frame
+	// right away. Only the state of the tracks that end in the last frame is kept (their length, speed, angle and
+	// the last numberOfFramesInPast positions in a TrackHistory), and a track is passed on to the sink as soon as
+	// it does not continue. So memory and the time per frame do not grow with the length of the acquisition.
+	//
+	// Frames are linked with the same cost matrix and linking methods as the SpotTracker, on a table with only
+	// the previous and the new frame. Future frames are not known, so the frames are only blurred in XY
+	// (no temporal blur), and the background is the median of the last backgroundWindow frames (if set).
+
+	private SpotDetector detector = new SpotDetector();
+	private SpotTracker tracker = new SpotTracker();
+	private Denoiser denoiser = new Denoiser();
+	private TrackingParameters p;
+	private TrackSink sink;						// null: finished tracks are only counted
+	private TrackSummary summary = new TrackSummary();
+	private RollingMedian background;			// null: no background is subtracted
+
+	private int frames = 0;						// frames added so far
+	private int trackCount = 0;					// track ids given out
+	private int finished = 0;					// tracks passed on to the sink
+
+	// The spots of the last frame, and the tracks that end in them
+	private SpotTable last;
+	private int[] trackId = new int[0];
+	private int[] length = new int[0];
+	private double[] speed = new double[0];
+	private double[] heading = new double[0];
+	private TrackHistory[] history = new TrackHistory[0];
+	private int[] firstFrame = new int[0];
+	private int[] startX = new int[0];
+	private int[] startY = new int[0];
+	private double[] pathLength = new double[0];
+
+	public OnlineTracker(TrackingParameters p, TrackSink sink) {
+		this.p = p;
+		this.sink = sink;
+		detector.setTileSize(p.tileSize);
+	}
+
+	public SpotTable addFrame(ImageProcessor frame) {
+		// Denoise and detect the next frame, and link it. Returns its spots, with their track ids.
+		int nx = frame.getWidth();
+		int ny = frame.getHeight();
+		float[] pixels = new float[nx * ny];
+		denoiser.toFloatPixels(frame, pixels);
+		denoiser.blurFrame(pixels, nx, ny, p.sigmaXY);
+		if (p.backgroundWindow > 0) {
+			if (background == null)
+				background = new RollingMedian(nx * ny, p.backgroundWindow);
+			if (background.size() == p.backgroundWindow)
+				background.removeOldest();
+			background.add(pixels);
+			float[] median = new float[nx * ny];
+			background.median(median);
+			for (int k = 0; k < pixels.length; k++)
+				pixels[k] -= median[k];
+		}
+		SpotTable spots = detector.detect(new FloatProcessor(nx, ny, pixels), p.sigmaDOG, p.DOGthreshold, p.maxSpotDistance, frames);
+		return addSpots(spots);
+	}
+
+	public SpotTable addSpots(SpotTable spots) {
+		// Link the spots of the next frame (a table with one frame, numbered frames()) to the last frame.
+		// Returns the same table, with the track ids set.
+		int t = frames;
+		if (spots.firstFrame() != t || spots.frames() != 1)
+			throw new IllegalArgumentException("Expected the spots of frame " + t);
+		int n = spots.size();
+		int[] newTrackId = new int[n];
+		int[] newLength = new int[n];
+		double[] newSpeed = new double[n];
+		double[] newHeading = new double[n];
+		TrackHistory[] newHistory = new TrackHistory[n];
+		int[] newFirstFrame = new int[n];
+		int[] newStartX = new int[n];
+		int[] newStartY = new int[n];
+		double[] newPathLength = new double[n];
+		for (int j = 0; j < n; j++) {
+			newTrackId[j] = -1;
+			newSpeed[j] = Double.NaN;
+			newHeading[j] = Double.NaN;
+			newFirstFrame[j] = t;
+			newStartX[j] = spots.x(j);
+			newStartY[j] = spots.y(j);
+		}
+
+		if (last != null) {
+			// Link on a table with the last and the new frame, continuing the tracks that end in the last frame
+			SpotTable window = new SpotTable(t - 1, last.size() + n);
+			window.append(last);
+			window.append(spots);
+			TrackStore tracks = new TrackStore(window, p.numberOfFramesInPast);
+			tracks.setTrackCount(trackCount);
+			for (int i = 0; i < last.size(); i++) {
+				window.setTrackId(i, trackId[i]);
+				tracks.continueTrack(window, i, length[i], speed[i], heading[i], history[i]);
+			}
+			tracker.linkFrames(window, tracks, t - 1, p);
+			trackCount = tracks.trackCount();
+
+			for (int i = 0; i < last.size(); i++) {
+				if (tracks.successor(i) < 0 && length[i] > 0)
+					finish(i, t - 1);
+			}
+			int offset = last.size();
+			for (int j = 0; j < n; j++) {
+				int i = tracks.predecessor(offset + j);
+				if (i < 0)
+					continue;
+				newTrackId[j] = window.trackId(offset + j);
+				newLength[j] = tracks.trackLength(offset + j);
+				newSpeed[j] = tracks.speed(offset + j);
+				newHeading[j] = tracks.heading(offset + j);
+				newHistory[j] = tracks.history(window, offset + j);
+				newFirstFrame[j] = firstFrame[i];
+				newStartX[j] = startX[i];
+				newStartY[j] = startY[i];
+				newPathLength[j] = pathLength[i] + window.distance(i, offset + j);
+				spots.setTrackId(j, newTrackId[j]);
+			}
+		}
+
+		last = spots;
+		trackId = newTrackId;
+		length = newLength;
+		speed = newSpeed;
+		heading = newHeading;
+		history = newHistory;
+		firstFrame = newFirstFrame;
+		startX = newStartX;
+		startY = newStartY;
+		pathLength = newPathLength;
+		frames++;
+		return spots;
+	}
+
+	public void finish() {
+		// End of the acquisition: pass on the tracks that end in the last frame
+		if (last == null)
+			return;
+		for (int i = 0; i < last.size(); i++) {
+			if (length[i] > 0)
+				finish(i, frames - 1);
+		}
+		last = null;
+	}
+
+	private void finish(int i, int t) {
+		// Pass on the track that ends in spot i of the last frame (frame t)
+		finished++;
+		if (sink == null)
+			return;
+		summary.trackId = trackId[i];
+		summary.firstFrame = firstFrame[i];
+		summary.lastFrame = t;
+		summary.steps = length[i];
+		summary.startX = startX[i];
+		summary.startY = startY[i];
+		summary.endX = last.x(i);
+		summary.endY = last.y(i);
+		summary.pathLength = pathLength[i];
+		try {
+			sink.add(summary);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Cannot write track " + summary.trackId, e);
+		}
+	}
+
+	public int frames() {
+		return frames;
+	}
+
+	public int tracks() {
+		// Number of tracks that were passed on to the sink
+		return finished;
+	}
+}
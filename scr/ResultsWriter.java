@@ -0,0 +1,44 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class ResultsWriter {
+	// Writes the spots and tracks of a movie to a comma separated file, one row per spot.
+	// The predecessor column is the row of the previous spot of the track (-1 if none),
+	// so tracks can be followed back in the table.
+
+	public static final String HEADER = "row,frame,x,y,subX,subY,dog,peak,mean,trackId,predecessor,length,speed,angle";
+
+	public void writeSpots(File file, SpotTable spots, TrackStore tracks) throws IOException {
+		StringBuilder line = new StringBuilder(128);
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+			out.write(HEADER);
+			out.newLine();
+			for (int i = 0; i < spots.size(); i++) {
+				line.setLength(0);
+				line.append(i).append(',')
+					.append(spots.t(i) + 1).append(',')		// frames are 1-based, as in ImageJ
+					.append(spots.x(i)).append(',')
+					.append(spots.y(i)).append(',')
+					.append(spots.subX(i)).append(',')
+					.append(spots.subY(i)).append(',')
+					.append(spots.dog(i)).append(',')
+					.append(spots.peak(i)).append(',')
+					.append(spots.mean(i)).append(',')
+					.append(spots.trackId(i)).append(',')
+					.append(tracks.predecessor(i)).append(',')
+					.append(tracks.trackLength(i)).append(',')
+					.append(number(tracks.speed(i))).append(',')
+					.append(number(tracks.heading(i)));
+				out.write(line.toString());
+				out.newLine();
+			}
+		}
+	}
+
+	private String number(double value) {
+		// Empty field for spots without a speed or angle
+		return Double.isNaN(value) ? "" : Double.toString(value);
+	}
+}
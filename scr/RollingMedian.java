@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+public class RollingMedian {
+	// Temporal median over a sliding window of frames, for every pixel.
+	// Each pixel keeps the values of the frames in the window in sorted order. When a frame is added or
+	// the oldest frame is dropped, one value per pixel is inserted or removed (binary search + shift),
+	// so moving the window costs O(window) per pixel instead of sorting the whole window again.
+	// The frames in the window are kept as well, so the caller can read them back (e.g. the frame in the middle).
+
+	private int nPixels;
+	private int capacity;
+	private float[] sorted;			// values of pixel p in sorted[p * capacity] ... sorted[p * capacity + count - 1]
+	private float[][] frames;		// frames in the window, the oldest in slot oldest
+	private int oldest = 0;
+	private int count = 0;
+
+	public RollingMedian(int nPixels, int capacity) {
+		this.nPixels = nPixels;
+		this.capacity = Math.max(1, capacity);
+		sorted = new float[nPixels * this.capacity];
+		frames = new float[this.capacity][];
+	}
+
+	public void add(float[] frame) {
+		// Add a frame to the window (a copy is kept). The window must not be full.
+		if (count == capacity)
+			throw new IllegalStateException("The window is full (" + capacity + " frames)");
+		int slot = (oldest + count) % capacity;
+		if (frames[slot] == null)
+			frames[slot] = new float[nPixels];
+		System.arraycopy(frame, 0, frames[slot], 0, nPixels);
+		for (int p = 0; p < nPixels; p++) {
+			int from = p * capacity;
+			int k = Arrays.binarySearch(sorted, from, from + count, frame[p]);
+			if (k < 0)
+				k = -k - 1;
+			System.arraycopy(sorted, k, sorted, k + 1, from + count - k);
+			sorted[k] = frame[p];
+		}
+		count++;
+	}
+
+	public void removeOldest() {
+		// Drop the oldest frame from the window.
+		if (count == 0)
+			throw new IllegalStateException("The window is empty");
+		float[] frame = frames[oldest];
+		for (int p = 0; p < nPixels; p++) {
+			int from = p * capacity;
+			int k = Arrays.binarySearch(sorted, from, from + count, frame[p]);
+			System.arraycopy(sorted, k + 1, sorted, k, from + count - k - 1);
+		}
+		oldest = (oldest + 1) % capacity;
+		count--;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public float[] frame(int k) {
+		// The k-th oldest frame in the window (not a copy).
+		return frames[(oldest + k) % capacity];
+	}
+
+	public void median(float[] out) {
+		// Median of the frames in the window, for every pixel.
+		if (count == 0) {
+			Arrays.fill(out, 0, nPixels, 0);
+			return;
+		}
+		int upper = count / 2;
+		for (int p = 0; p < nPixels; p++) {
+			int from = p * capacity;
+			if (count % 2 == 1)
+				out[p] = sorted[from + upper];
+			else
+				out[p] = 0.5f * (sorted[from + upper - 1] + sorted[from + upper]);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import ij.IJ;
+
+public class RunMetrics {
+	// Wall time, allocated bytes and counts of a tracking run, per stage and per frame, in primitive arrays.
+	// Work is recorded by the thread that does it:
+	//		long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+	//		... work on frame t ...
+	//		metrics.record(RunMetrics.DETECT, t, start, bytes);
+	// Every frame is recorded by one thread at a time, so no locks are needed. Work that is not per frame is
+	// recorded with t = -1 by the thread that runs the stage. The wall time of a whole stage (which is shorter
+	// than its work when frames are done in parallel) is measured with begin and end.
+	// A disabled instance records nothing, so the components can always call it.
+	// It also shows the progress bar, at most every PROGRESS_INTERVAL_MS, instead of once per frame.
+
+	public static final int DENOISE = 0;
+	public static final int BACKGROUND = 1;
+	public static final int DETECT = 2;
+	public static final int LINK = 3;
+	public static final int WRITE = 4;
+	private static final String[] STAGES = {"denoise", "background", "detect", "link", "write"};
+
+	public static final int CANDIDATES = 0;		// local maxima before the neighbour filter
+	public static final int SPOTS = 1;
+	public static final int COST_PAIRS = 2;		// candidate links in the cost matrix
+	public static final int LINKS = 3;
+	private static final String[] COUNTERS = {"candidates", "spots", "costPairs", "links"};
+
+	private static final long PROGRESS_INTERVAL_MS = 100;
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private boolean enabled;
+	private int frames;
+	private long[][] nanos;				// [stage][frame], the last column is work that is not per frame
+	private long[][] bytes;
+	private long[][] counts;			// [counter][frame]
+	private long[] stageStart = new long[STAGES.length];
+	private long[] stageWall = new long[STAGES.length];
+	private boolean showProgress = true;
+	private long lastProgress = 0;
+
+	public RunMetrics(int frames) {
+		this.enabled = true;
+		this.frames = Math.max(0, frames);
+		nanos = new long[STAGES.length][this.frames + 1];
+		bytes = new long[STAGES.length][this.frames + 1];
+		counts = new long[COUNTERS.length][this.frames];
+	}
+
+	public static RunMetrics disabled() {
+		RunMetrics metrics = new RunMetrics(0);
+		metrics.enabled = false;
+		return metrics;
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		// Allocated bytes per thread are only available on HotSpot (and compatible) JVMs
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+		if (!hotspot.isThreadAllocatedMemorySupported())
+			return null;
+		hotspot.setThreadAllocatedMemoryEnabled(true);
+		return hotspot;
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	public static long allocated() {
+		// Bytes allocated by the current thread so far (0 if the JVM cannot tell)
+		return (THREADS != null) ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setProgress(boolean showProgress) {
+		this.showProgress = showProgress;
+	}
+
+	public void record(int stage, int t, long startNanos, long startBytes) {
+		// Add the time and allocations of the current thread since startNanos and startBytes to frame t of stage
+		if (!enabled)
+			return;
+		int k = (t >= 0 && t < frames) ? t : frames;
+		nanos[stage][k] += now() - startNanos;
+		bytes[stage][k] += allocated() - startBytes;
+	}
+
+	public void count(int counter, int t, long n) {
+		if (enabled && t >= 0 && t < frames)
+			counts[counter][t] += n;
+	}
+
+	public void begin(int stage) {
+		stageStart[stage] = now();
+	}
+
+	public void end(int stage) {
+		if (enabled)
+			stageWall[stage] += now() - stageStart[stage];
+	}
+
+	public void progress(int done, int total) {
+		// Show the progress bar, unless it was shown less than PROGRESS_INTERVAL_MS ago (the last step is always shown)
+		if (!showProgress)
+			return;
+		long time = System.currentTimeMillis();
+		if (done >= total) {
+			IJ.showProgress(1.0);
+		}
+		else if (time - lastProgress >= PROGRESS_INTERVAL_MS) {
+			lastProgress = time;
+			IJ.showProgress(done, total);
+		}
+	}
+
+	public long work(int stage) {
+		// Time spent in stage by all threads, in nanoseconds
+		long sum = 0;
+		for (long n : nanos[stage])
+			sum += n;
+		return sum;
+	}
+
+	public long allocatedBytes(int stage) {
+		long sum = 0;
+		for (long n : bytes[stage])
+			sum += n;
+		return sum;
+	}
+
+	public long total(int counter) {
+		long sum = 0;
+		for (long n : counts[counter])
+			sum += n;
+		return sum;
+	}
+
+	public String summary() {
+		// One line per stage, for the log
+		StringBuilder summary = new StringBuilder();
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			if (stageWall[stage] == 0 && work(stage) == 0)
+				continue;
+			summary.append(String.format("%-10s %9.1f ms wall %9.1f ms work %9.1f MB allocated%n", STAGES[stage],
+					stageWall[stage] / 1e6, work(stage) / 1e6, allocatedBytes(stage) / 1e6));
+		}
+		for (int counter = 0; counter < COUNTERS.length; counter++)
+			summary.append(COUNTERS[counter]).append(' ').append(total(counter)).append((counter < COUNTERS.length - 1) ? ", " : "");
+		return summary.toString();
+	}
+
+	public void writeJson(File file) throws IOException {
+		// Totals per stage and counter, and the same per frame (as one array per column)
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			out.write("{\n  \"frames\": " + frames + ",\n  \"stages\": {\n");
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				out.write("    \"" + STAGES[stage] + "\": {\"wallNanos\": " + stageWall[stage] + ", \"workNanos\": " + work(stage)
+						  + ", \"allocatedBytes\": " + allocatedBytes(stage) + "}" + ((stage < STAGES.length - 1) ? ",\n" : "\n"));
+			}
+			out.write("  },\n  \"counts\": {");
+			for (int counter = 0; counter < COUNTERS.length; counter++)
+				out.write(((counter > 0) ? ", \"" : "\"") + COUNTERS[counter] + "\": " + total(counter));
+			out.write("},\n  \"perFrame\": {\n");
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				writeArray(out, STAGES[stage] + "Nanos", nanos[stage], frames);
+				out.write(",\n");
+				writeArray(out, STAGES[stage] + "Bytes", bytes[stage], frames);
+				out.write(",\n");
+			}
+			for (int counter = 0; counter < COUNTERS.length; counter++) {
+				writeArray(out, COUNTERS[counter], counts[counter], frames);
+				out.write((counter < COUNTERS.length - 1) ? ",\n" : "\n");
+			}
+			out.write("  }\n}\n");
+		}
+	}
+
+	private void writeArray(BufferedWriter out, String name, long[] values, int n) throws IOException {
+		out.write("    \"" + name + "\": [");
+		for (int t = 0; t < n; t++)
+			out.write(((t > 0) ? ", " : "") + values[t]);
+		out.write("]");
+	}
+
+	public void writeCsv(File file) throws IOException {
+		// One row per frame (1-based, as in ImageJ): time and allocations per stage, and the counts
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			StringBuilder line = new StringBuilder("frame");
+			for (String stage : STAGES)
+				line.append(',').append(stage).append("Nanos,").append(stage).append("Bytes");
+			for (String counter : COUNTERS)
+				line.append(',').append(counter);
+			out.write(line.toString());
+			out.newLine();
+			for (int t = 0; t < frames; t++) {
+				line.setLength(0);
+				line.append(t + 1);
+				for (int stage = 0; stage < STAGES.length; stage++)
+					line.append(',').append(nanos[stage][t]).append(',').append(bytes[stage][t]);
+				for (int counter = 0; counter < COUNTERS.length; counter++)
+					line.append(',').append(counts[counter][t]);
+				out.write(line.toString());
+				out.newLine();
+			}
+		}
+	}
+}
@@ -1,40 +1,69 @@
 import ij.ImagePlus;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
-import ij.gui.Overlay;
+import ij.process.FloatProcessor;
 import ij.IJ;
 
-import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
 
 import java.awt.AWTEvent;
+import java.awt.Checkbox;
+import java.awt.EventQueue;
 import java.awt.TextField;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
-public class SetupDenoisingDialog implements ActionListener {
-	
+public class SetupDenoisingDialog implements ActionListener, DialogListener {
+
+	private static final int DEBOUNCE_MS = 300;		// wait this long after the last key stroke before updating the preview
+
 	ImagePlus crop;
 	JButton previewBtn = new JButton("Preview");
 	GenericDialog  gd = new GenericDialog("Enter denoising parameters");
-		
+
+	// The preview runs the real spatio-temporal blur and background subtraction on the frames around
+	// the current frame, on a background thread. A newer preview cancels the one that is running.
+	// The median background is estimated as the run will: from the frames the FramePipeline samples in streaming mode,
+	// and from the whole movie otherwise.
+	private volatile ImagePlus source;
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> pending;
+	private AtomicInteger generation = new AtomicInteger();
+
 	public GenericDialog showDialog( ImagePlus imp )
 	{
-		// Initiate a 'crop' ImagePlus (one timeframe) 
+		// Initiate a 'crop' ImagePlus (one timeframe)
 		crop = new ImagePlus();
-		
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Denoising preview");
+			thread.setDaemon(true);
+			return thread;
+		});
+
         gd.addNumericField("SigmaXY", 1);
         gd.addNumericField("SigmaT", 2);
-        
+        gd.addNumericField("Rolling background window (frames, 0 = whole movie)", 0);
+        gd.addCheckbox("Streaming mode (low memory)", false);
+
         // Add listener to button
      	previewBtn.addActionListener(this);
-        
+
         gd.add(previewBtn);
+        gd.addDialogListener(this);
         gd.showDialog();
-        
+
+        // Stop the preview
+        generation.incrementAndGet();
+        executor.shutdownNow();
+        source = null;
+
         if (gd.wasCanceled()){
         	crop.changes = false; // this avoids "Save changes?" message
         	crop.close();
@@ -48,22 +77,71 @@ public class SetupDenoisingDialog implements ActionListener {
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		
-		Denoiser denoiser = new Denoiser();
-		
+
 		// Close the previous crop
 		crop.changes = false; // this avoids "Save changes?" message
 		crop.close();
-		
-		ImagePlus imp = IJ.getImage();
-		
-		// Get parameters
+		crop = new ImagePlus();
+
+		source = IJ.getImage();
+		updatePreview(0);
+	}
+
+	@Override
+	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+		// Called on every key stroke: update the preview once typing pauses
+		if (source != null)
+			updatePreview(DEBOUNCE_MS);
+		return true;
+	}
+
+	private void updatePreview(int delay) {
+		// Get parameters (on the event thread). Fields that are not a number yet are ignored.
 		Vector<TextField> params = gd.getNumericFields();
-		double sigmaXY = Double.parseDouble( params.get(0).getText() );
-		
-		// Do denoising on one frame only to save time
-		crop = imp.crop("whole-slice");
-		denoiser.gaussianBlur(crop, sigmaXY);
-		crop.show();
+		double sigmaXY;
+		double sigmaT;
+		int backgroundWindow;
+		try {
+			sigmaXY = Double.parseDouble( params.get(0).getText() );
+			sigmaT = Double.parseDouble( params.get(1).getText() );
+			backgroundWindow = (int) Double.parseDouble( params.get(2).getText() );
+		}
+		catch (NumberFormatException ex) {
+			return;
+		}
+		if (sigmaXY < 0 || sigmaT < 0)
+			return;
+		boolean streaming = ((Checkbox) gd.getCheckboxes().get(0)).getState();
+
+		ImagePlus imp = source;
+		int t = imp.getT() - 1;
+		int current = generation.incrementAndGet();
+		if (pending != null)
+			pending.cancel(false);
+		pending = executor.schedule(() -> {
+			// Denoise and subtract the background of the current frame only
+			FramePipeline pipeline = new FramePipeline(sigmaXY, sigmaT, 0, 0, 0);
+			if (!streaming)
+				pipeline.setBackgroundSamples(imp.getNFrames());
+			pipeline.setBackgroundWindow(backgroundWindow);
+			float[] frame = pipeline.preprocessedFrame(imp, t, () -> generation.get() != current);
+			if (frame == null)
+				return;
+			FloatProcessor fp = new FloatProcessor(imp.getWidth(), imp.getHeight(), frame);
+			EventQueue.invokeLater(() -> {
+				if (generation.get() != current)
+					return;
+				if (crop.getProcessor() == null || crop.getWindow() == null) {
+					crop = new ImagePlus("Preview of frame " + (t + 1), fp);
+					crop.show();
+				}
+				else {
+					crop.setProcessor(fp);
+					crop.setTitle("Preview of frame " + (t + 1));
+					crop.resetDisplayRange();
+					crop.updateAndDraw();
+				}
+			});
+		}, delay, TimeUnit.MILLISECONDS);
 	}
 }
@@ -1,47 +1,90 @@
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
 import java.awt.TextField;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.gui.Overlay;
+import ij.process.FloatProcessor;
+
+public class SetupDetectionDialog implements ActionListener, DialogListener {
+
+	private static final int DEBOUNCE_MS = 200;	// wait this long after the last key stroke before updating the preview
 
-public class SetupDetectionDialog implements ActionListener {
-	
 	ImagePlus crop;
 	JButton previewBtn = new JButton("Preview");
 	GenericDialog  gd = new GenericDialog("Enter spot detection parameters");
-	
+
+	// The preview is computed on a background thread. Every change of a parameter starts a new generation,
+	// which cancels the computation of the previous one.
+	private volatile DetectionPreview preview;
+	private ImagePlus source;
+	private TrackingParameters denoising;		// null: the shown image is already preprocessed
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> pending;
+	private AtomicInteger generation = new AtomicInteger();
+
 	public GenericDialog showDialog( ImagePlus imp )
 	{
-		// Initiate a 'crop' ImagePlus (one timeframe) 
+		return showDialog(imp, null);
+	}
+
+	public GenericDialog showDialog( ImagePlus imp, TrackingParameters denoising )
+	{
+		// If no preprocessed stack is shown (streaming mode), the preview denoises and subtracts the background
+		// of the frame with these denoising parameters first, as the FramePipeline does before it thresholds the DoG.
+		this.source = imp;
+		this.denoising = denoising;
+		// Initiate a 'crop' ImagePlus (one timeframe)
 		crop = new ImagePlus();
-		
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Detection preview");
+			thread.setDaemon(true);
+			return thread;
+		});
+
 		gd.addMessage("Spot detection parameters:");
         gd.addNumericField("DOG sigma", 3);
         gd.addNumericField("DOG threshold", 1);
         gd.addNumericField("Maximal distance between neigbouring spots", 5);
+        gd.addNumericField("Tile size for large frames (pixels, 0 = whole frame)", 0);
         // Add listener to button and add button to GenericDialog
      	previewBtn.addActionListener(this);
         gd.add(previewBtn);
-        
+
         gd.addMessage("Spot tracking parameters:");
         gd.addNumericField("Maximal spot movement (in one timestep)", 15);
         gd.addNumericField("Maximal number of frames in past considered for speed calculation", 10);
-        
+        gd.addChoice("Linking method", new String[] {"Nearest neighbour", "Global (LAP)"}, "Nearest neighbour");
+        gd.addNumericField("Birth/death cost for global linking (0 = automatic)", 0);
+
         gd.addMessage("Cost function parameters (must sum up to 1):");
         gd.addNumericField("Distance cost", 0.25);
         gd.addNumericField("Intensity cost", 0.25);
         gd.addNumericField("Speed cost", 0.25);
         gd.addNumericField("Angle cost", 0.25);
-        
+
+        // Update the preview while typing
+        gd.addDialogListener(this);
         gd.showDialog();
-        
+
+        // Stop the preview
+        generation.incrementAndGet();
+        executor.shutdownNow();
+        preview = null;
+
         if (gd.wasCanceled()){
         	crop.changes = false; // this avoids "Save changes?" message
         	crop.close();
@@ -55,37 +98,92 @@ public class SetupDetectionDialog implements ActionListener {
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		
+
 		// Close the previous crop
 		crop.changes = false; // this avoids "Save changes?" message
 		crop.close();
-		
-		ImagePlus imp = IJ.getImage();
-		SpotDetector detector = new SpotDetector();
-		
-		// Get parameters
-		Vector<TextField> params = gd.getNumericFields();
-		double sigmaDOG = Double.parseDouble( params.get(0).getText() );
-		double DOGthreshold = Double.parseDouble( params.get(1).getText() );
-		int maxSpotDistance = (int) Double.parseDouble( params.get(2).getText() );
-		
-		// Do spot detection on one frame only to save time
-		crop = imp.crop("whole-slice");
-		
-		// Detect spots by detecting local maxima in DoG
-		ImagePlus dog = detector.dog(crop, sigmaDOG);
-		ArrayList<Spot> localmax = detector.localMax(dog, maxSpotDistance, DOGthreshold, 0);
-		ArrayList<Spot> spots = detector.filter(localmax, maxSpotDistance);
-		
-		// Draw spot detections as overlay
-		Overlay overlay = new Overlay();
-		draw(overlay, spots);
-		crop.setOverlay(overlay);			
-		crop.show();
+
+		// Do spot detection on one frame only to save time.
+		// The blurred images and candidates of this frame are kept while the parameters change.
+		if (denoising == null) {
+			ImagePlus imp = IJ.getImage();
+			crop = imp.crop("whole-slice");
+			crop.show();
+			preview = new DetectionPreview(crop.getProcessor());
+			updatePreview(0);
+			return;
+		}
+
+		// Preprocess the current frame on the background thread first
+		preview = null;
+		ImagePlus imp = source;
+		int t = imp.getT() - 1;
+		int current = generation.incrementAndGet();
+		if (pending != null)
+			pending.cancel(false);
+		pending = executor.schedule(() -> {
+			FramePipeline pipeline = new FramePipeline(denoising.sigmaXY, denoising.sigmaT, 0, 0, 0);
+			pipeline.setBackgroundWindow(denoising.backgroundWindow);
+			float[] frame = pipeline.preprocessedFrame(imp, t, () -> generation.get() != current);
+			if (frame == null)
+				return;
+			FloatProcessor fp = new FloatProcessor(imp.getWidth(), imp.getHeight(), frame);
+			DetectionPreview engine = new DetectionPreview(fp);
+			EventQueue.invokeLater(() -> {
+				if (generation.get() != current)
+					return;
+				crop = new ImagePlus("Preprocessed frame " + (t + 1), fp);
+				crop.show();
+				preview = engine;
+				updatePreview(0);
+			});
+		}, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+		// Called on every key stroke: update the preview once typing pauses
+		if (preview != null)
+			updatePreview(DEBOUNCE_MS);
+		return true;
 	}
-	
-	private void draw(Overlay overlay, ArrayList<Spot> spots) {
-		for (Spot s : spots)
-			s.draw(overlay);
+
+	private void updatePreview(int delay) {
+		// Get parameters (on the event thread). Fields that are not a number yet are ignored.
+		Vector<TextField> params = gd.getNumericFields();
+		double sigmaDOG;
+		double DOGthreshold;
+		int maxSpotDistance;
+		try {
+			sigmaDOG = Double.parseDouble( params.get(0).getText() );
+			DOGthreshold = Double.parseDouble( params.get(1).getText() );
+			maxSpotDistance = (int) Double.parseDouble( params.get(2).getText() );
+		}
+		catch (NumberFormatException ex) {
+			return;
+		}
+		if (!(sigmaDOG > 0) || maxSpotDistance < 0)
+			return;
+
+		int current = generation.incrementAndGet();
+		if (pending != null)
+			pending.cancel(false);
+		DetectionPreview engine = preview;
+		ImagePlus target = crop;
+		pending = executor.schedule(() -> {
+			// Detect spots by detecting local maxima in DoG (cancelled if the parameters change again)
+			SpotTable spots = engine.detect(sigmaDOG, DOGthreshold, maxSpotDistance, () -> generation.get() != current);
+			if (spots == null)
+				return;
+
+			// Draw spot detections as overlay
+			Overlay overlay = new Overlay();
+			overlay.add(new SpotOverlayRoi(spots, null, target.getWidth(), target.getHeight()));
+			overlay.selectable(false);
+			EventQueue.invokeLater(() -> {
+				if (generation.get() == current && target == crop)
+					crop.setOverlay(overlay);
+			});
+		}, delay, TimeUnit.MILLISECONDS);
 	}
 }
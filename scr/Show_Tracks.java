@@ -0,0 +1,54 @@
+import java.io.File;
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.Overlay;
+import ij.plugin.PlugIn;
+
+public class Show_Tracks implements PlugIn {
+	// Opens a track file (written by Track_Microtubules or Batch_Track_Microtubules) and shows its statistics,
+	// and its tracks on the current movie if one is open. Nothing is detected or linked again:
+	// the statistics and overlays read the memory-mapped file directly.
+
+	public void run(String arg) {
+		String path = IJ.getFilePath("Track file (" + TrackFile.EXTENSION + ")");
+		if (path == null)
+			return;
+		TrackFile file;
+		try {
+			file = TrackFile.open(new File(path));
+		}
+		catch (IOException e) {
+			IJ.error("Show Tracks", e.getMessage());
+			return;
+		}
+		IJ.log(file.size() + " spots in " + file.frames() + " frames read from " + path);
+
+		// Replay the statistics frame by frame
+		TrackStatistics statistics = new TrackStatistics(null);
+		for (int t = file.firstFrame(); t < file.firstFrame() + file.frames(); t++)
+			statistics.addFrame(file, file, t);
+		IJ.log(statistics.tracks() + " tracks");
+		for (int stat = TrackStatistics.LENGTH; stat <= TrackStatistics.ANGLE; stat++) {
+			statistics.plotOverTime(stat).show();
+			statistics.trackHistogram(stat).show();
+		}
+
+		// Draw the traces and spots on the current movie
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null)
+			return;
+		Overlay overlay = new Overlay();
+		for (int t = file.firstFrame(); t < file.firstFrame() + file.frames(); t++) {
+			for (int i = file.frameStart(t); i < file.frameEnd(t); i++) {
+				if (file.isTraceEnd(i) && file.trackLength(i) > 5)
+					overlay.add(TrackPolylineRoi.forTrace(file, file, i));
+			}
+		}
+		overlay.add(new SpotOverlayRoi(file, file, imp.getWidth(), imp.getHeight()));
+		overlay.selectable(false);
+		imp.setOverlay(overlay);
+	}
+}
@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+public class SparseCostMatrix {
+	// Cost matrix that only holds the candidate pairs (compressed sparse rows).
+	// Rows are spots in timeframe t, columns are spots in timeframe t+1.
+	// The entries of row i are rowStart(i) ... rowEnd(i) - 1, with increasing columns.
+
+	private int rows;
+	private int cols;
+	private int[] rowStart;
+	private int[] column;
+	private double[] cost;
+	private int size = 0;
+	private int row = 0;		// row that is being filled
+
+	public SparseCostMatrix(int rows, int cols, int capacity) {
+		this.rows = rows;
+		this.cols = cols;
+		rowStart = new int[rows + 1];
+		column = new int[Math.max(1, capacity)];
+		cost = new double[column.length];
+	}
+
+	public int add(int i, int j, double c) {
+		// Add an entry. Entries must be added row by row, with increasing columns within a row,
+		// and finish() must be called after the last entry.
+		if (size == column.length) {
+			column = Arrays.copyOf(column, 2 * size);
+			cost = Arrays.copyOf(cost, 2 * size);
+		}
+		while (row < i)
+			rowStart[++row] = size;
+		column[size] = j;
+		cost[size] = c;
+		return size++;
+	}
+
+	public void finish() {
+		// Close the remaining (empty) rows.
+		while (row < rows)
+			rowStart[++row] = size;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	public int cols() {
+		return cols;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int rowStart(int i) {
+		return rowStart[i];
+	}
+
+	public int rowEnd(int i) {
+		return rowStart[i + 1];
+	}
+
+	public int column(int k) {
+		return column[k];
+	}
+
+	public double cost(int k) {
+		return cost[k];
+	}
+
+	public void setCost(int k, double c) {
+		cost[k] = c;
+	}
+}
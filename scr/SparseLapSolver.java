@@ -0,0 +1,273 @@
+import java.util.Arrays;
+
+public class SparseLapSolver {
+	// Globally optimal frame-to-frame linking, as a linear assignment problem (LAP)
+	// on the candidate pairs of a SparseCostMatrix only.
+	//
+	// A spot in frame t can be linked to a spot in frame t+1, or end its track (death cost),
+	// and a spot in frame t+1 can be linked, or start a new track (birth cost).
+	// As in u-track, this is written as a square (A+B) x (B+A) assignment problem:
+	//
+	//		| linking costs C (A x B)    | death costs, diagonal (A x A)        |
+	//		| birth costs, diagonal (B x B) | 0 where C has a pair, transposed (B x A) |
+	//
+	// which always has a solution. It is solved with Jonker-Volgenant style shortest augmenting paths
+	// (Dijkstra with column potentials), after a column reduction that assigns the easy rows.
+	// Only the stored pairs are visited, so time and memory scale with the number of candidates.
+
+	private double birthCost;
+	private double deathCost;
+
+	// Augmented problem (compressed sparse rows)
+	private int n;
+	private int[] rowStart;
+	private int[] column;
+	private double[] cost;
+
+	// Solution and column potentials
+	private int[] rowAssignment;
+	private int[] colAssignment;
+	private double[] v;
+
+	// Shortest path search
+	private double[] dist;
+	private int[] pred;
+	private boolean[] scanned;
+	private int[] touched;
+	private int nTouched;
+	private double[] heapKey;
+	private int[] heapCol;
+	private int heapSize;
+
+	public SparseLapSolver(double birthCost, double deathCost) {
+		// Costs smaller than or equal to 0 are replaced by 1.05 x the largest linking cost.
+		this.birthCost = birthCost;
+		this.deathCost = deathCost;
+	}
+
+	public int[] solve(SparseCostMatrix C) {
+		// Returns, for every row of C, the column it is linked to (-1 if the track ends).
+		int A = C.rows();
+		int B = C.cols();
+		double maxCost = 0;
+		for (int k = 0; k < C.size(); k++)
+			maxCost = Math.max(maxCost, C.cost(k));
+		double birth = (birthCost > 0) ? birthCost : ((maxCost > 0) ? 1.05 * maxCost : 1);
+		double death = (deathCost > 0) ? deathCost : ((maxCost > 0) ? 1.05 * maxCost : 1);
+		build(C, birth, death);
+
+		rowAssignment = new int[n];
+		colAssignment = new int[n];
+		Arrays.fill(rowAssignment, -1);
+		Arrays.fill(colAssignment, -1);
+		v = new double[n];
+		columnReduction();
+
+		dist = new double[n];
+		pred = new int[n];
+		scanned = new boolean[n];
+		touched = new int[n];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		heapKey = new double[16];
+		heapCol = new int[16];
+		for (int row = 0; row < n; row++) {
+			if (rowAssignment[row] < 0)
+				augment(row);
+		}
+
+		int[] links = new int[A];
+		for (int i = 0; i < A; i++)
+			links[i] = (rowAssignment[i] < B) ? rowAssignment[i] : -1;
+		return links;
+	}
+
+	private void build(SparseCostMatrix C, double birth, double death) {
+		// Make the augmented (A+B) x (B+A) problem.
+		int A = C.rows();
+		int B = C.cols();
+		n = A + B;
+		int nnz = C.size();
+		rowStart = new int[n + 1];
+		column = new int[2 * nnz + n];
+		cost = new double[column.length];
+
+		// Transposed pairs, counted per column of C
+		int[] colCount = new int[B + 1];
+		for (int k = 0; k < nnz; k++)
+			colCount[C.column(k) + 1]++;
+		for (int j = 0; j < B; j++)
+			colCount[j + 1] += colCount[j];
+
+		int size = 0;
+		// Spots in frame t: link to a spot in frame t+1, or end the track
+		for (int i = 0; i < A; i++) {
+			rowStart[i] = size;
+			for (int k = C.rowStart(i); k < C.rowEnd(i); k++) {
+				column[size] = C.column(k);
+				cost[size++] = C.cost(k);
+			}
+			column[size] = B + i;
+			cost[size++] = death;
+		}
+		// Spots in frame t+1: start a new track, or (if linked) take the place of the linked spot's death
+		for (int j = 0; j < B; j++) {
+			rowStart[A + j] = size;
+			column[size] = j;
+			cost[size++] = birth;
+			size += colCount[j + 1] - colCount[j];
+		}
+		rowStart[n] = size;
+		int[] fill = new int[B];
+		for (int i = 0; i < A; i++) {
+			for (int k = C.rowStart(i); k < C.rowEnd(i); k++) {
+				int j = C.column(k);
+				int entry = rowStart[A + j] + 1 + fill[j]++;
+				column[entry] = B + i;
+				cost[entry] = 0;
+			}
+		}
+	}
+
+	private void columnReduction() {
+		// Give every column the potential of its cheapest row,
+		// and assign that row to it if the row is still free.
+		double[] minCost = new double[n];
+		int[] minRow = new int[n];
+		Arrays.fill(minCost, Double.POSITIVE_INFINITY);
+		Arrays.fill(minRow, -1);
+		for (int row = 0; row < n; row++) {
+			for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+				if (cost[k] < minCost[column[k]]) {
+					minCost[column[k]] = cost[k];
+					minRow[column[k]] = row;
+				}
+			}
+		}
+		for (int col = n - 1; col >= 0; col--) {
+			v[col] = minCost[col];
+			int row = minRow[col];
+			if (row >= 0 && rowAssignment[row] < 0) {
+				rowAssignment[row] = col;
+				colAssignment[col] = row;
+			}
+		}
+	}
+
+	private void augment(int start) {
+		// Find the shortest augmenting path from a free row to a free column
+		// (with reduced costs c_ij - v_j, which are kept non-negative), then flip the assignments along it.
+		nTouched = 0;
+		heapSize = 0;
+		for (int k = rowStart[start]; k < rowStart[start + 1]; k++)
+			relax(column[k], cost[k] - v[column[k]], start);
+
+		int sink = -1;
+		double minDist = 0;
+		while (heapSize > 0) {
+			double d = heapKey[0];
+			int col = pop();
+			if (scanned[col] || d > dist[col])
+				continue;
+			if (colAssignment[col] < 0) {
+				sink = col;
+				minDist = d;
+				break;
+			}
+			scanned[col] = true;
+			// Continue from the row that is assigned to this column
+			int row = colAssignment[col];
+			double rowPotential = costOf(row, col) - v[col];
+			for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+				int next = column[k];
+				if (!scanned[next])
+					relax(next, d + cost[k] - v[next] - rowPotential, row);
+			}
+		}
+		if (sink < 0)
+			throw new IllegalStateException("No augmenting path found for row " + start);
+
+		// Update the potentials of the scanned columns
+		for (int t = 0; t < nTouched; t++) {
+			int col = touched[t];
+			if (scanned[col])
+				v[col] += dist[col] - minDist;
+		}
+		// Flip the assignments along the path
+		int col = sink;
+		while (true) {
+			int row = pred[col];
+			int previous = rowAssignment[row];
+			rowAssignment[row] = col;
+			colAssignment[col] = row;
+			if (row == start)
+				break;
+			col = previous;
+		}
+		// Reset the search
+		for (int t = 0; t < nTouched; t++) {
+			int c = touched[t];
+			dist[c] = Double.POSITIVE_INFINITY;
+			scanned[c] = false;
+		}
+	}
+
+	private void relax(int col, double d, int row) {
+		if (d >= dist[col])
+			return;
+		if (dist[col] == Double.POSITIVE_INFINITY)
+			touched[nTouched++] = col;
+		dist[col] = d;
+		pred[col] = row;
+		push(d, col);
+	}
+
+	private double costOf(int row, int col) {
+		for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+			if (column[k] == col)
+				return cost[k];
+		}
+		throw new IllegalStateException("Row " + row + " is assigned to column " + col + " without a cost");
+	}
+
+	private void push(double key, int col) {
+		// Binary min-heap on key (entries that became outdated are skipped when popped)
+		if (heapSize == heapKey.length) {
+			heapKey = Arrays.copyOf(heapKey, 2 * heapSize);
+			heapCol = Arrays.copyOf(heapCol, 2 * heapSize);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heapKey[parent] <= key)
+				break;
+			heapKey[i] = heapKey[parent];
+			heapCol[i] = heapCol[parent];
+			i = parent;
+		}
+		heapKey[i] = key;
+		heapCol[i] = col;
+	}
+
+	private int pop() {
+		int top = heapCol[0];
+		heapSize--;
+		double key = heapKey[heapSize];
+		int col = heapCol[heapSize];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heapSize)
+				break;
+			if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child])
+				child++;
+			if (heapKey[child] >= key)
+				break;
+			heapKey[i] = heapKey[child];
+			heapCol[i] = heapCol[child];
+			i = child;
+		}
+		heapKey[i] = key;
+		heapCol[i] = col;
+		return top;
+	}
+}
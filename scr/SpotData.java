@@ -0,0 +1,57 @@
+import java.awt.Color;
+
+public interface SpotData {
+	// Read access to spots stored per frame: spot i of frame t is row frameStart(t) + i.
+	// Implemented by SpotTable (on the heap) and TrackFile (memory-mapped), so statistics and overlays work on both.
+
+	int size();
+
+	int frames();
+
+	int firstFrame();
+
+	int frameStart(int t);
+
+	int frameEnd(int t);
+
+	int x(int i);
+
+	int y(int i);
+
+	int t(int i);
+
+	float dog(int i);
+
+	float peak(int i);
+
+	float mean(int i);
+
+	float subX(int i);
+
+	float subY(int i);
+
+	int trackId(int i);
+
+	default int frameSize(int t) {
+		return frameEnd(t) - frameStart(t);
+	}
+
+	default double distance(int i, int j) {
+		double dx = x(i) - x(j);
+		double dy = y(i) - y(j);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	default float hue(int i) {
+		// Hue (0 ... 1) of a spot, made from its track id (or its row if it is not part of a track).
+		// The hue follows the golden ratio, so consecutive ids get very different colors.
+		long key = (trackId(i) >= 0) ? trackId(i) : (long) Integer.MAX_VALUE + i;
+		return (float) ((key * 0.6180339887498949) % 1.0);
+	}
+
+	default Color color(int i) {
+		// Color of a spot: its hue, semi-transparent
+		Color color = Color.getHSBColor(hue(i), 1f, 1f);
+		return new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
+	}
+}
@@ -1,59 +1,263 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 public class SpotDetector {
 	
+	// Every thread gets its own filter and finder, because they keep their buffers between calls
+	private ThreadLocal<DogFilter> dogFilter = ThreadLocal.withInitial(DogFilter::new);
+	private ThreadLocal<LocalMaxFinder> maxFinder = ThreadLocal.withInitial(LocalMaxFinder::new);
+	private ThreadLocal<SpotTable> candidates = ThreadLocal.withInitial(() -> new SpotTable(0));
+	private ThreadLocal<float[]> tileBuffer = ThreadLocal.withInitial(() -> new float[0]);
+	
+	private int tileSize = 0;		// frames larger than this are split into tiles (0 = never)
+	private RunMetrics metrics = RunMetrics.disabled();
+	
+	public void setTileSize(int tileSize) {
+		this.tileSize = Math.max(0, tileSize);
+	}
+	
+	public void setMetrics(RunMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
 	public ImagePlus dog(ImagePlus imp, double sigma) {
-		// Perform difference of Gaussian
-		ImageProcessor ip = imp.getProcessor();
-		ImagePlus g1 = imp.crop("whole-slice"); // duplicate only one slice
-		ImagePlus g2 = imp.crop("whole-slice"); // duplicate only one slice
-		IJ.run(g1, "Gaussian Blur...", "sigma=" + sigma);
-		IJ.run(g2, "Gaussian Blur...", "sigma=" + (Math.sqrt(2) * sigma));
-		ImagePlus dog = ImageCalculator.run(g1, g2, "Subtract create 32-bit stack");
-		g1.close();
-		g2.close();
-		ip = dog.getProcessor();
-		return dog;
-	}
-	
-	public Spots localMax(ImagePlus dog, int nbh_size, double threshold, int t) {
+		// Perform difference of Gaussian on the current slice
+		return new ImagePlus("DoG", dog(imp.getProcessor(), sigma));
+	}
+	
+	public FloatProcessor dog(ImageProcessor ip, double sigma) {
+		// Perform difference of Gaussian on one frame.
+		// This does not use macros or the current slice, so it can be called from several threads.
+		float[] dog = dogFilter.get().apply(ip, sigma);
+		float[] pixels = new float[ip.getWidth() * ip.getHeight()];
+		System.arraycopy(dog, 0, pixels, 0, pixels.length);
+		return new FloatProcessor(ip.getWidth(), ip.getHeight(), pixels);
+	}
+	
+	public SpotTable localMax(ImagePlus dog, int nbh_size, double threshold, int t) {
 		// Find local maxima. Pixel values of maxima must be larger than threshold,
 		// and maxima cannot be further than nbh_size away from each other.
-		int nx = dog.getWidth();
-		int ny = dog.getHeight();
-		Spots spots = new Spots();
-		ImageProcessor ip = dog.getProcessor();
-		for (int x = nbh_size; x < nx - nbh_size; x++) {
-			for (int y = nbh_size; y < ny - nbh_size; y++) {
-				double v = ip.getPixelValue(x, y);
-				// Maxima must be larger than threshold
-				if (v > threshold) {
-					double max = -1;
-					// Maxima must be max in their neighborhood.
-					for (int k = -nbh_size; k <= nbh_size; k++)
-						for (int l = -nbh_size; l <= nbh_size; l++)
-							max = Math.max(max, ip.getPixelValue(x + k, y + l));
-					if (v == max) {
-						spots.add(new Spot(x, y, t));
-					}
+		return localMax(dog.getProcessor(), nbh_size, threshold, t);
+	}
+	
+	public SpotTable localMax(ImageProcessor dog, int nbh_size, double threshold, int t) {
+		if (!(dog instanceof FloatProcessor))
+			dog = dog.convertToFloat();
+		SpotTable spots = new SpotTable(t);
+		spots.addFrame();
+		maxFinder.get().find((float[]) dog.getPixels(), dog.getWidth(), dog.getHeight(), nbh_size, threshold, spots);
+		return spots;
+	}
+	
+	public SpotTable filter(SpotTable spotList, int nbh_size) {
+		// Remove spots that have a neighbor closer than nbh_size away from it.
+		// The spots that are kept are stored in a grid, so only the cells around a spot are checked.
+		SpotTable out = new SpotTable(spotList.firstFrame(), spotList.size());
+		for (int t = spotList.firstFrame(); t < spotList.firstFrame() + spotList.frames(); t++) {
+			out.addFrame();
+			SpotGrid grid = SpotGrid.around(spotList, spotList.frameStart(t), spotList.frameEnd(t), nbh_size);
+			for (int i = spotList.frameStart(t); i < spotList.frameEnd(t); i++) {
+				if (!grid.hasWithin(spotList.x(i), spotList.y(i), nbh_size)) {
+					out.addFrom(spotList, i);
+					grid.add(spotList.x(i), spotList.y(i));
 				}
 			}
 		}
+		return out;
+	}
+	
+	public SpotTable detect(ImageProcessor frame, double sigma, double threshold, int nbh_size, int t) {
+		// DoG, local maxima and filtering on one frame (thread-safe).
+		// The DoG is written into the buffers of this thread, so no image is allocated.
+		long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+		SpotTable spots;
+		if (tileSize > 0 && (frame.getWidth() > tileSize || frame.getHeight() > tileSize)) {
+			spots = detectTiled(frame, sigma, threshold, nbh_size, t);
+		}
+		else {
+			float[] dog = dogFilter.get().apply(frame, sigma);
+			spots = maxima(dog, frame.getWidth(), frame.getHeight(), threshold, nbh_size, t);
+			measure(frame, dog, spots);
+		}
+		metrics.count(RunMetrics.SPOTS, t, spots.size());
+		metrics.record(RunMetrics.DETECT, t, start, bytes);
 		return spots;
 	}
 	
-	public ArrayList<Spot> filter(ArrayList<Spot> spotList, int nbh_size) {
-		// Remove spots that have a neighbor closer than nbh_size away from it.
-		ArrayList<Spot> out = new Spots();
-		for (Spot spot : spotList) {
-			if (spot.closestDistance(out) > nbh_size)
-				out.add(spot);
-		}		
-		return out;
+	public SpotTable detectTiled(ImageProcessor frame, double sigma, double threshold, int nbh_size, int t) {
+		// Same as detect, but the frame is split into tiles of tileSize x tileSize pixels that are processed in parallel.
+		// Each tile is filtered with a halo around it that covers the DoG kernel and the neighbourhood of a maximum,
+		// so the DoG values and maxima inside the tile are exactly those of the whole frame.
+		// The candidates of all tiles are merged in the order of a whole-frame scan (x, then y)
+		// before they are filtered, so the result is bit-identical to detecting on the whole frame.
+		int nx = frame.getWidth();
+		int ny = frame.getHeight();
+		int size = Math.max(1, tileSize);
+		int halo = (dogFilter.get().kernel(Math.sqrt(2) * sigma).length - 1) / 2 + Math.max(1, nbh_size);
+		int tilesX = (nx + size - 1) / size;
+		int tilesY = (ny + size - 1) / size;
+		SpotTable[] tiles = new SpotTable[tilesX * tilesY];
+		IntStream.range(0, tiles.length).parallel().forEach(k -> {
+			int x0 = (k / tilesY) * size;
+			int y0 = (k % tilesY) * size;
+			tiles[k] = detectTile(frame, sigma, threshold, nbh_size, t, x0, y0, Math.min(nx, x0 + size), Math.min(ny, y0 + size), halo);
+		});
+		
+		// Merge: for every column, the spots of the tiles above each other, from top to bottom
+		SpotTable localmax = candidates.get();
+		localmax.clear(t);
+		localmax.addFrame();
+		int[] next = new int[tilesY];
+		for (int tx = 0; tx < tilesX; tx++) {
+			Arrays.fill(next, 0);
+			for (int x = tx * size; x < Math.min(nx, (tx + 1) * size); x++) {
+				for (int ty = 0; ty < tilesY; ty++) {
+					SpotTable tile = tiles[tx * tilesY + ty];
+					while (next[ty] < tile.size() && tile.x(next[ty]) == x)
+						localmax.addFrom(tile, next[ty]++);
+				}
+			}
+		}
+		metrics.count(RunMetrics.CANDIDATES, t, localmax.size());
+		return filter(localmax, nbh_size);
+	}
+	
+	private SpotTable detectTile(ImageProcessor frame, double sigma, double threshold, int nbh_size, int t,
+								 int x0, int y0, int x1, int y1, int halo) {
+		// Local maxima (with their features) in x0 ... x1-1, y0 ... y1-1, found in the tile plus its halo.
+		int nx = frame.getWidth();
+		int ny = frame.getHeight();
+		int rx0 = Math.max(0, x0 - halo);
+		int ry0 = Math.max(0, y0 - halo);
+		int w = Math.min(nx, x1 + halo) - rx0;
+		int h = Math.min(ny, y1 + halo) - ry0;
+		float[] pixels = tileBuffer.get();
+		if (pixels.length < w * h) {
+			pixels = new float[w * h];
+			tileBuffer.set(pixels);
+		}
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				pixels[y * w + x] = frame.getf(rx0 + x, ry0 + y);
+		float[] dog = dogFilter.get().apply(pixels, w, h, sigma);
+		
+		SpotTable found = new SpotTable(t);
+		found.addFrame();
+		maxFinder.get().find(dog, w, h, nbh_size, threshold, found);
+		SpotTable spots = new SpotTable(t, found.size());
+		spots.addFrame();
+		for (int i = 0; i < found.size(); i++) {
+			int x = found.x(i) + rx0;
+			int y = found.y(i) + ry0;
+			if (x < x0 || x >= x1 || y < y0 || y >= y1)
+				continue;
+			int row = spots.add(x, y, found.dog(i));
+			float subX = x + offsetX(dog, w, found.x(i), found.y(i));
+			float subY = y + offsetY(dog, w, h, found.x(i), found.y(i));
+			spots.setFeatures(row, frame.getf(x, y), mean3x3(frame, x, y), subX, subY);
+		}
+		return spots;
+	}
+	
+	public SpotTable maxima(float[] dog, int nx, int ny, double threshold, int nbh_size, int t) {
+		// Local maxima of a DoG response, filtered so no two spots are closer than nbh_size (thread-safe).
+		// The features of the spots are not measured.
+		SpotTable localmax = candidates.get();
+		localmax.clear(t);
+		localmax.addFrame();
+		maxFinder.get().find(dog, nx, ny, nbh_size, threshold, localmax);
+		metrics.count(RunMetrics.CANDIDATES, t, localmax.size());
+		return filter(localmax, nbh_size);
+	}
+	
+	public void measure(ImageProcessor frame, float[] dog, SpotTable spots) {
+		// Measure the features of the spots once, so the tracker never needs the image:
+		// the intensity at the spot, the mean intensity of the 3x3 pixels around it,
+		// and a sub-pixel position from a parabola through the DoG values around the maximum.
+		int nx = frame.getWidth();
+		int ny = frame.getHeight();
+		for (int i = 0; i < spots.size(); i++) {
+			int x = spots.x(i);
+			int y = spots.y(i);
+			spots.setFeatures(i, frame.getf(x, y), mean3x3(frame, x, y), subPixelX(dog, nx, x, y), subPixelY(dog, nx, ny, x, y));
+		}
+	}
+	
+	private float mean3x3(ImageProcessor frame, int x, int y) {
+		int nx = frame.getWidth();
+		int ny = frame.getHeight();
+		double sum = 0;
+		for (int k = -1; k <= 1; k++)
+			for (int l = -1; l <= 1; l++)
+				sum += frame.getf(Math.max(0, Math.min(nx - 1, x + k)), Math.max(0, Math.min(ny - 1, y + l)));
+		return (float) (sum / 9);
+	}
+	
+	public float subPixelX(float[] dog, int nx, int x, int y) {
+		// Sub-pixel x position of the maximum at (x, y)
+		return x + offsetX(dog, nx, x, y);
+	}
+	
+	public float subPixelY(float[] dog, int nx, int ny, int x, int y) {
+		// Sub-pixel y position of the maximum at (x, y)
+		return y + offsetY(dog, nx, ny, x, y);
+	}
+	
+	private float offsetX(float[] dog, int nx, int x, int y) {
+		if (x <= 0 || x >= nx - 1)
+			return 0;
+		return parabolaPeak(dog[y * nx + x - 1], dog[y * nx + x], dog[y * nx + x + 1]);
+	}
+	
+	private float offsetY(float[] dog, int nx, int ny, int x, int y) {
+		if (y <= 0 || y >= ny - 1)
+			return 0;
+		return parabolaPeak(dog[(y - 1) * nx + x], dog[y * nx + x], dog[(y + 1) * nx + x]);
+	}
+	
+	private float parabolaPeak(float left, float center, float right) {
+		// Offset (between -0.5 and 0.5) of the top of the parabola through 3 neighbouring values.
+		float curvature = left - 2 * center + right;
+		if (!(curvature < 0))
+			return 0;
+		float offset = 0.5f * (left - right) / curvature;
+		return Math.max(-0.5f, Math.min(0.5f, offset));
+	}
+	
+	public SpotTable detectAll(ImageStack stack, int nt, double sigma, double threshold, int nbh_size, int nThreads) {
+		// Detect spots in the first nt slices of the stack, with nThreads frames at the same time.
+		// The results are stored in frame order.
+		SpotTable spots = new SpotTable(0);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			ArrayList<Future<SpotTable>> futures = new ArrayList<Future<SpotTable>>();
+			for (int t = 0; t < nt; t++) {
+				final int frame = t;
+				futures.add(pool.submit(() -> detect(stack.getProcessor(frame + 1), sigma, threshold, nbh_size, frame)));
+			}
+			for (int t = 0; t < nt; t++)
+				spots.append(futures.get(t).get());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Spot detection was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Spot detection failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return spots;
 	}
 }
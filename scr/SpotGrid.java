@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+public class SpotGrid {
+	// Uniform grid over spot positions, to find spots close to a position without
+	// comparing it to all spots. Spots are stored as linked lists of indices per cell
+	// (in primitive arrays), and get an index in the order they are added.
+
+	private int minX;
+	private int minY;
+	private int cellSize;
+	private int nCellsX;
+	private int nCellsY;
+	private int[] head;			// first spot in each cell (-1 if empty)
+	private int[] next;			// next spot in the same cell (-1 if last)
+	private int[] xs;
+	private int[] ys;
+	private int size = 0;
+	private int[] found = new int[16];	// result of the last closerThan query
+	private int nFound = 0;
+
+	public SpotGrid(int minX, int minY, int maxX, int maxY, int cellSize, int capacity) {
+		// Grid covering [minX, maxX] x [minY, maxY].
+		this.minX = minX;
+		this.minY = minY;
+		// Cells are made larger if there would be many more cells than spots
+		this.cellSize = Math.max(1, cellSize);
+		nCellsX = (maxX - minX) / this.cellSize + 1;
+		nCellsY = (maxY - minY) / this.cellSize + 1;
+		while ((long) nCellsX * nCellsY > 4L * capacity + 16) {
+			this.cellSize *= 2;
+			nCellsX = (maxX - minX) / this.cellSize + 1;
+			nCellsY = (maxY - minY) / this.cellSize + 1;
+		}
+		head = new int[nCellsX * nCellsY];
+		Arrays.fill(head, -1);
+		next = new int[Math.max(1, capacity)];
+		xs = new int[next.length];
+		ys = new int[next.length];
+	}
+
+	public static SpotGrid around(SpotTable spots, int from, int to, int cellSize) {
+		// Empty grid covering the positions of spots from ... to-1 in the table.
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = from; i < to; i++) {
+			minX = Math.min(minX, spots.x(i));
+			minY = Math.min(minY, spots.y(i));
+			maxX = Math.max(maxX, spots.x(i));
+			maxY = Math.max(maxY, spots.y(i));
+		}
+		if (from >= to)
+			minX = minY = maxX = maxY = 0;
+		return new SpotGrid(minX, minY, maxX, maxY, cellSize, to - from);
+	}
+
+	public int add(int x, int y) {
+		// Add a spot and return its index.
+		if (size == next.length) {
+			next = Arrays.copyOf(next, 2 * size);
+			xs = Arrays.copyOf(xs, 2 * size);
+			ys = Arrays.copyOf(ys, 2 * size);
+		}
+		int cell = cellY(y) * nCellsX + cellX(x);
+		xs[size] = x;
+		ys[size] = y;
+		next[size] = head[cell];
+		head[cell] = size;
+		return size++;
+	}
+
+	public boolean hasWithin(int x, int y, double r) {
+		// True if a spot in the grid is at distance r or closer to (x, y).
+		int cx0 = cellX((int) Math.floor(x - r));
+		int cx1 = cellX((int) Math.ceil(x + r));
+		int cy0 = cellY((int) Math.floor(y - r));
+		int cy1 = cellY((int) Math.ceil(y + r));
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				for (int i = head[cy * nCellsX + cx]; i >= 0; i = next[i]) {
+					double dx = x - xs[i];
+					double dy = y - ys[i];
+					if (Math.sqrt(dx * dx + dy * dy) <= r)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public int closerThan(int x, int y, double r) {
+		// Find the spots that are closer than r to (x, y).
+		// Returns the number of spots found; their indices (in increasing order) are given by found(k).
+		nFound = 0;
+		int cx0 = cellX((int) Math.floor(x - r));
+		int cx1 = cellX((int) Math.ceil(x + r));
+		int cy0 = cellY((int) Math.floor(y - r));
+		int cy1 = cellY((int) Math.ceil(y + r));
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				for (int i = head[cy * nCellsX + cx]; i >= 0; i = next[i]) {
+					double dx = x - xs[i];
+					double dy = y - ys[i];
+					if (Math.sqrt(dx * dx + dy * dy) < r) {
+						if (nFound == found.length)
+							found = Arrays.copyOf(found, 2 * nFound);
+						found[nFound++] = i;
+					}
+				}
+			}
+		}
+		Arrays.sort(found, 0, nFound);
+		return nFound;
+	}
+
+	public int found(int k) {
+		return found[k];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int cellX(int x) {
+		// Cell column of x, positions outside the grid are clamped to the border cells.
+		return Math.max(0, Math.min(nCellsX - 1, Math.floorDiv(x - minX, cellSize)));
+	}
+
+	private int cellY(int y) {
+		return Math.max(0, Math.min(nCellsY - 1, Math.floorDiv(y - minY, cellSize)));
+	}
+}
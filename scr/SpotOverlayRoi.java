@@ -0,0 +1,81 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+public class SpotOverlayRoi extends Roi {
+	// One overlay element for all spots of a movie. When the canvas is painted, it draws the spots of the displayed
+	// frame (and the links to the spots they are linked to) straight from the SpotData (a SpotTable or a TrackFile), so there is no Roi object
+	// per spot. Spots outside the visible part of the image are skipped.
+	// The Roi covers the whole image and is shown on every frame (position 0).
+	// The colors come from a palette of hue buckets made once, so painting does not create Color objects,
+	// also for spots that get their track id after the overlay was made (live tracking).
+
+	private static final int HUES = 64;
+
+	private SpotData spots;
+	private TrackData tracks;			// null: no links are drawn
+	private int radius = 5;
+	private Color[] palette = new Color[HUES];
+
+	public SpotOverlayRoi(SpotData spots, TrackData tracks, int width, int height) {
+		super(0, 0, width, height);
+		this.spots = spots;
+		this.tracks = tracks;
+		setPosition(0);
+		for (int k = 0; k < HUES; k++) {
+			Color color = Color.getHSBColor((k + 0.5f) / HUES, 1f, 1f);
+			palette[k] = new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
+		}
+	}
+
+	@Override
+	public void drawOverlay(Graphics g) {
+		drawFrame(g);
+	}
+
+	@Override
+	public void draw(Graphics g) {
+		drawFrame(g);
+	}
+
+	private void drawFrame(Graphics g) {
+		ImagePlus imp = getImage();
+		if (imp == null)
+			return;
+		// Movies without time dimension have their frames as slices
+		int t = ((imp.getNFrames() > 1) ? imp.getT() : imp.getCurrentSlice()) - 1;
+		if (t < spots.firstFrame() || t >= spots.firstFrame() + spots.frames())
+			return;
+
+		Graphics2D g2 = (Graphics2D) g;
+		double mag = getMagnification();
+		Rectangle visible = (ic != null) ? ic.getSrcRect() : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+		int margin = radius + 1;
+		int size = (int) Math.round(2 * radius * mag);
+		BasicStroke circleStroke = new BasicStroke(1);
+		BasicStroke linkStroke = new BasicStroke((float) Math.max(1, 2 * mag));
+		for (int i = spots.frameStart(t); i < spots.frameEnd(t); i++) {
+			int x = spots.x(i);
+			int y = spots.y(i);
+			int next = (tracks == null) ? -1 : tracks.successor(i);
+			boolean inside = x >= visible.x - margin && x < visible.x + visible.width + margin
+						  && y >= visible.y - margin && y < visible.y + visible.height + margin;
+			if (!inside && next < 0)
+				continue;
+			g2.setColor(palette[Math.min(HUES - 1, (int) (spots.hue(i) * HUES))]);
+			if (inside) {
+				g2.setStroke(circleStroke);
+				g2.drawOval(screenXD(x + 0.5 - radius), screenYD(y + 0.5 - radius), size, size);
+			}
+			if (next >= 0) {
+				g2.setStroke(linkStroke);
+				g2.drawLine(screenXD(x), screenYD(y), screenXD(spots.x(next)), screenYD(spots.y(next)));
+			}
+		}
+	}
+}
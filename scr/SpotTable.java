@@ -0,0 +1,193 @@
+import java.util.Arrays;
+
+public class SpotTable implements SpotData {
+	// Spots stored as columns of primitives (struct of arrays), instead of one object per spot.
+	// The spots of a frame are stored next to each other: spot i of frame t is row frameStart(t) + i.
+	// A table holds consecutive frames firstFrame() ... firstFrame() + frames() - 1.
+
+	private int size = 0;
+	private int[] x;
+	private int[] y;
+	private int[] t;
+	// Features, measured once when the spot is detected
+	private float[] dog;			// response of the detector (DoG value) at the spot
+	private float[] peak;			// intensity of the (preprocessed) image at the spot
+	private float[] mean;			// mean intensity of the 3x3 pixels around the spot
+	private float[] subX;			// sub-pixel position of the spot
+	private float[] subY;
+	private int[] trackId;			// -1 if the spot is not part of a track
+	private int firstFrame;
+	private int frames = 0;
+	private int[] frameStart;		// frameStart[k] is the first row of frame firstFrame + k
+
+	public SpotTable(int firstFrame) {
+		this(firstFrame, 64);
+	}
+
+	public SpotTable(int firstFrame, int capacity) {
+		this.firstFrame = firstFrame;
+		capacity = Math.max(1, capacity);
+		x = new int[capacity];
+		y = new int[capacity];
+		t = new int[capacity];
+		dog = new float[capacity];
+		peak = new float[capacity];
+		mean = new float[capacity];
+		subX = new float[capacity];
+		subY = new float[capacity];
+		trackId = new int[capacity];
+		frameStart = new int[8];
+	}
+
+	public static SpotTable copyOf(SpotData spots) {
+		// A table with the spots (and their features) of other spot data, e.g. a TrackFile, without track ids.
+		SpotTable table = new SpotTable(spots.firstFrame(), spots.size());
+		for (int t = spots.firstFrame(); t < spots.firstFrame() + spots.frames(); t++) {
+			table.addFrame();
+			for (int i = spots.frameStart(t); i < spots.frameEnd(t); i++) {
+				int row = table.add(spots.x(i), spots.y(i), spots.dog(i));
+				table.setFeatures(row, spots.peak(i), spots.mean(i), spots.subX(i), spots.subY(i));
+			}
+		}
+		return table;
+	}
+
+	public void addFrame() {
+		// Start the next frame. The spots that are added after this belong to it.
+		if (frames + 1 >= frameStart.length)
+			frameStart = Arrays.copyOf(frameStart, 2 * frameStart.length);
+		frameStart[frames] = size;
+		frames++;
+		frameStart[frames] = size;
+	}
+
+	public int add(int x, int y, float dog) {
+		// Add a spot to the last frame and return its row.
+		// Its other features are 0, and its sub-pixel position is (x, y), until they are set.
+		if (frames == 0)
+			addFrame();
+		if (size == this.x.length)
+			grow(2 * size);
+		this.x[size] = x;
+		this.y[size] = y;
+		this.t[size] = firstFrame + frames - 1;
+		this.dog[size] = dog;
+		this.peak[size] = 0;
+		this.mean[size] = 0;
+		this.subX[size] = x;
+		this.subY[size] = y;
+		this.trackId[size] = -1;
+		size++;
+		frameStart[frames] = size;
+		return size - 1;
+	}
+
+	public void addFrom(SpotTable other, int i) {
+		// Copy spot i of another table (with its features) to the last frame.
+		int row = add(other.x[i], other.y[i], other.dog[i]);
+		setFeatures(row, other.peak[i], other.mean[i], other.subX[i], other.subY[i]);
+	}
+
+	public void setFeatures(int i, float peak, float mean, float subX, float subY) {
+		this.peak[i] = peak;
+		this.mean[i] = mean;
+		this.subX[i] = subX;
+		this.subY[i] = subY;
+	}
+
+	public void append(SpotTable other) {
+		// Add all frames of another table, which must start at the frame after the last frame of this table.
+		if (other.firstFrame != firstFrame + frames)
+			throw new IllegalArgumentException("Frame " + other.firstFrame + " does not follow frame " + (firstFrame + frames - 1));
+		if (size + other.size > x.length)
+			grow(Math.max(2 * x.length, size + other.size));
+		for (int f = 0; f < other.frames; f++) {
+			addFrame();
+			for (int i = other.frameStart[f]; i < other.frameStart[f + 1]; i++)
+				addFrom(other, i);
+		}
+	}
+
+	public void clear(int firstFrame) {
+		// Remove all spots and frames (the columns are kept for reuse), the next frame will be firstFrame.
+		this.firstFrame = firstFrame;
+		size = 0;
+		frames = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int frames() {
+		return frames;
+	}
+
+	public int firstFrame() {
+		return firstFrame;
+	}
+
+	public int frameStart(int t) {
+		return frameStart[t - firstFrame];
+	}
+
+	public int frameEnd(int t) {
+		return frameStart[t - firstFrame + 1];
+	}
+
+	public int x(int i) {
+		return x[i];
+	}
+
+	public int y(int i) {
+		return y[i];
+	}
+
+	public int t(int i) {
+		return t[i];
+	}
+
+	public float dog(int i) {
+		return dog[i];
+	}
+
+	public float peak(int i) {
+		return peak[i];
+	}
+
+	public float mean(int i) {
+		return mean[i];
+	}
+
+	public float subX(int i) {
+		return subX[i];
+	}
+
+	public float subY(int i) {
+		return subY[i];
+	}
+
+	public int trackId(int i) {
+		return trackId[i];
+	}
+
+	public void setTrackId(int i, int id) {
+		trackId[i] = id;
+	}
+
+	public String toString(int i) {
+		return "(" + x[i] + ", " + y[i] + ", " + t[i] + ")";
+	}
+
+	private void grow(int capacity) {
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		t = Arrays.copyOf(t, capacity);
+		dog = Arrays.copyOf(dog, capacity);
+		peak = Arrays.copyOf(peak, capacity);
+		mean = Arrays.copyOf(mean, capacity);
+		subX = Arrays.copyOf(subX, capacity);
+		subY = Arrays.copyOf(subY, capacity);
+		trackId = Arrays.copyOf(trackId, capacity);
+	}
+}
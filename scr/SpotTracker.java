@@ -1,102 +1,206 @@
-import java.util.ArrayList;
-
-import ij.IJ;
-import ij.ImagePlus;
+import java.util.Arrays;
 
 public class SpotTracker {
 	
-	public double cost(Spot current, Spot next, ArrayList<Spot> spots[], ImagePlus imp, 
+	private RunMetrics metrics = RunMetrics.disabled();
+	
+	public void setMetrics(RunMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public double cost(double dist, double intensityDifference, double speedDifference, double thetaDifference,
 					   double dMax, double fMax, double sMax, double tMax,
-					   double betaDist, double betaIntensity, double betaSpeed, double betaAngle, int numberOfFramesInPast) {
+					   double betaDist, double betaIntensity, double betaSpeed, double betaAngle) {
 		// Implementation of cost function.
-		// This function gets the cost for particles current and next.
-		// Note that I added a method intensityDifference to the Spot class,
-		// which calculates the difference in mean intensity between the spots current and next.
-		double dist = current.distance(next);
-		double intensityDifference = current.intensityDifference(next, imp);
-		double speedDifference = current.speedDifference(next, spots, numberOfFramesInPast);
-		double thetaDifference = current.angleDifference(next, spots, numberOfFramesInPast);
-		//return betaDist * dist/dMax + betaIntensity * intensityDifference/fMax;
+		// This function gets the cost for a pair of particles from the differences between them.
+		// The differences are normalized by their maximum over all candidate pairs.
 		return betaDist * dist/dMax + betaIntensity * intensityDifference/fMax 
 				+ betaSpeed * + speedDifference/sMax + betaAngle * thetaDifference/tMax;
 	}
 	
-	public double[][] getDistanceMatrix(ArrayList<Spot> spots[], int t){
+	public double[][] getDistanceMatrix(SpotTable spots, int t){
 		// Get max distance
 		double dMax = -1;
-		for (Spot current: spots[t]) {
-			for (Spot next: spots[t+1]) {
-				dMax = Math.max(dMax, current.distance(next));
+		for (int i = spots.frameStart(t); i < spots.frameEnd(t); i++) {
+			for (int j = spots.frameStart(t+1); j < spots.frameEnd(t+1); j++) {
+				dMax = Math.max(dMax, spots.distance(i, j));
 			}
 		}
 		// Fill distance matrix
-		double[][] D = new double[spots[t].size()][spots[t+1].size()];
-		for (int i = 0; i < spots[t].size(); i++) {
-			Spot current = spots[t].get(i);
-			for (int j = 0; j < spots[t+1].size(); j++) {
-				Spot next = spots[t+1].get(j);
-				D[i][j] = current.distance(next) / dMax;
+		double[][] D = new double[spots.frameSize(t)][spots.frameSize(t+1)];
+		for (int i = 0; i < spots.frameSize(t); i++) {
+			for (int j = 0; j < spots.frameSize(t+1); j++) {
+				D[i][j] = spots.distance(spots.frameStart(t) + i, spots.frameStart(t+1) + j) / dMax;
 			}
 		}
 		return D;
 	}
 	
-	public double[][] getCostMatrix(ArrayList<Spot> spots[], ImagePlus imp,
-									double betaDist, double betaIntensity, double betaSpeed, double betaAngle, int numberOfFramesInPast){
-		// This function returns an AxB matrix, where A is the number of particles on timeframe t
+	public SparseCostMatrix getCostMatrix(SpotTable spots, TrackStore tracks, int t, double maxSpotMovement,
+									double betaDist, double betaIntensity, double betaSpeed, double betaAngle){
+		// This function returns a sparse AxB matrix, where A is the number of particles on timeframe t
 		// and B is the number of particles on timeframe t+1.
 		// C_ij is the cost function for particle i (on frame t) and particle j (on frame t+1).
-		// Note that I added a method intensityDifference to the Spot class.
+		// Only pairs that are closer than maxSpotMovement are stored (the linkers ignore the others anyway).
+		// They are found with a grid over the particles on frame t+1.
+		// The intensity difference uses the mean intensities that were measured when the spots were detected,
+		// and the speed and angle differences use the track statistics in tracks, that were stored when the spots were linked.
 		
-		int t = imp.getCurrentSlice() - 1;		
-		// Get max distance, delta_intensity, delta_speed and delta_theta (used for normalization afterwards)
+		int currentStart = spots.frameStart(t);
+		int nextStart = spots.frameStart(t+1);
+		SpotGrid grid = SpotGrid.around(spots, nextStart, spots.frameEnd(t+1), (int) Math.ceil(maxSpotMovement));
+		for (int j = nextStart; j < spots.frameEnd(t+1); j++)
+			grid.add(spots.x(j), spots.y(j));
+		
+		// Find the candidate pairs and their distance, delta_intensity, delta_speed and delta_theta.
+		// Keep track of the max of each term (used for normalization afterwards).
+		SparseCostMatrix C = new SparseCostMatrix(spots.frameSize(t), spots.frameSize(t+1), 4 * spots.frameSize(t));
+		double[] terms = new double[4 * 4 * spots.frameSize(t) + 4];
 		double dMax = -1;
 		double fMax = -1;
 		double sMax = -1;
 		double tMax = -1;
-		for (Spot current: spots[t]) {
-			for (Spot next: spots[t+1]) {
-				dMax = Math.max(dMax, current.distance(next));
-				fMax = Math.max(fMax, current.intensityDifference(next, imp));
-				sMax = Math.max(sMax, current.speedDifference(next, spots, numberOfFramesInPast));
-				tMax = Math.max(tMax, current.angleDifference(next, spots, numberOfFramesInPast));
+		for (int i = 0; i < spots.frameSize(t); i++) {
+			int current = currentStart + i;
+			int n = grid.closerThan(spots.x(current), spots.y(current), maxSpotMovement);
+			for (int k = 0; k < n; k++) {
+				int j = grid.found(k);
+				int next = nextStart + j;
+				int entry = C.add(i, j, 0);
+				if (4 * entry + 4 > terms.length)
+					terms = Arrays.copyOf(terms, 2 * terms.length);
+				terms[4 * entry] = spots.distance(current, next);
+				terms[4 * entry + 1] = Math.abs(spots.mean(current) - spots.mean(next));
+				terms[4 * entry + 2] = speedDifference(spots, current, next, tracks.speed(current));
+				terms[4 * entry + 3] = angleDifference(spots, current, next, tracks.heading(current));
+				dMax = Math.max(dMax, terms[4 * entry]);
+				fMax = Math.max(fMax, terms[4 * entry + 1]);
+				sMax = Math.max(sMax, terms[4 * entry + 2]);
+				tMax = Math.max(tMax, terms[4 * entry + 3]);
 			}
 		}
+		C.finish();
+		// Terms that are 0 for all pairs do not contribute to the cost
+		dMax = (dMax > 0) ? dMax : 1;
+		fMax = (fMax > 0) ? fMax : 1;
+		sMax = (sMax > 0) ? sMax : 1;
+		tMax = (tMax > 0) ? tMax : 1;
 		// Fill cost matrix
-		double[][] C = new double[spots[t].size()][spots[t+1].size()];
-		for (int i = 0; i < spots[t].size(); i++) {
-			Spot current = spots[t].get(i);
-			for (int j = 0; j < spots[t+1].size(); j++) {
-				Spot next = spots[t+1].get(j);
-				C[i][j] = cost(current, next, spots, imp, dMax, fMax, sMax, tMax, 
-							   betaDist, betaIntensity, betaSpeed, betaAngle, numberOfFramesInPast);
-			}
+		for (int entry = 0; entry < C.size(); entry++) {
+			C.setCost(entry, cost(terms[4 * entry], terms[4 * entry + 1], terms[4 * entry + 2], terms[4 * entry + 3],
+								  dMax, fMax, sMax, tMax, betaDist, betaIntensity, betaSpeed, betaAngle));
+		}
+		return C;
+	}
+	
+	public TrackStore track(SpotTable spots, TrackingParameters p) {
+		return track(spots, p, null);
+	}
+	
+	public TrackStore track(SpotTable spots, TrackingParameters p, TrackStatistics statistics) {
+		// Link the spots of all frames, frame by frame, with the linking method of the parameters.
+		// A frame is added to the statistics (if given) as soon as it is linked to the next one.
+		TrackStore tracks = new TrackStore(spots, p.numberOfFramesInPast);
+		int first = spots.firstFrame();
+		for (int t = first; t < first + spots.frames() - 1; t++) {
+			long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+			SparseCostMatrix C = linkFrames(spots, tracks, t, p);
+			metrics.record(RunMetrics.LINK, t, start, bytes);
+			metrics.count(RunMetrics.COST_PAIRS, t, C.size());
+			if (metrics.isEnabled())
+				metrics.count(RunMetrics.LINKS, t, links(spots, tracks, t + 1));
+			metrics.progress(t - first, spots.frames() - 1);
+			if (statistics != null)
+				statistics.addFrame(spots, tracks, t);
 		}
+		if (statistics != null && spots.frames() > 0)
+			statistics.addFrame(spots, tracks, first + spots.frames() - 1);
+		metrics.progress(spots.frames(), spots.frames());
+		return tracks;
+	}
+	
+	public SparseCostMatrix linkFrames(SpotTable spots, TrackStore tracks, int t, TrackingParameters p) {
+		// Link the spots of frame t to those of frame t+1, with the linking method of the parameters.
+		// Returns the cost matrix that was used.
+		SparseCostMatrix C = getCostMatrix(spots, tracks, t, p.maxSpotMovement,
+										   p.betaDist, p.betaIntensity, p.betaSpeed, p.betaAngle);
+		if (p.globalLinking)
+			lapLinking(C, spots, tracks, t, p.birthDeathCost, p.birthDeathCost);
+		else
+			nearestNeighbourLinking(C, spots, tracks, t, p.maxSpotMovement);
 		return C;
 	}
 	
-	public void thresholdLinking(double[][] C, ArrayList<Spot> spots[], int t, double costThreshold) {
+	private int links(SpotTable spots, TrackStore tracks, int t) {
+		// Number of spots of frame t that continue a track
+		int links = 0;
+		for (int j = spots.frameStart(t); j < spots.frameEnd(t); j++) {
+			if (tracks.predecessor(j) >= 0)
+				links++;
+		}
+		return links;
+	}
+	
+	public double speedDifference(SpotTable spots, int current, int next, double speed) {
+		// Calculate difference between the speed of the current spot and the distance to the next spot.
+		// If the current spot has no speed (NaN), the distance between the 2 spots is returned.
+		double difference = spots.distance(current, next);
+		if (!(Double.isNaN(speed))) {
+			difference = Math.abs(speed - spots.distance(current, next));
+		}
+		return difference;
+	}
+	
+	public double angleDifference(SpotTable spots, int current, int next, double heading) {
+		// Calculate difference between the trajectory angle of the current spot and angle with the next spot.
+		// If no angle could be computed (NaN), return 0 as the angle difference.
+		double difference = 0;
+		if (!(Double.isNaN(heading))) {
+			double angle = Math.atan2(spots.y(next) - spots.y(current), spots.x(next) - spots.x(current));
+			difference = Math.abs(heading - angle);
+		}
+		return difference;
+	}
+	
+	public void thresholdLinking(SparseCostMatrix C, SpotTable spots, TrackStore tracks, int t, double costThreshold) {
 		// This function links 2 spots if the cost function between them is smaller than  costThreshold.
-		for (int i = 0; i < spots[t].size(); i++) {
-			for (int j = 0; j < spots[t+1].size(); j++) {
-				if (C[i][j] < costThreshold) {
-					spots[t].get(i).link(spots[t+1].get(j));
+		// A spot can only continue one track, so only the first pair below the threshold is linked.
+		for (int i = 0; i < C.rows(); i++) {
+			for (int k = C.rowStart(i); k < C.rowEnd(i); k++) {
+				int current = spots.frameStart(t) + i;
+				int next = spots.frameStart(t+1) + C.column(k);
+				if (C.cost(k) < costThreshold && tracks.isTraceEnd(current) && tracks.predecessor(next) < 0) {
+					tracks.link(spots, current, next);
 				}
 			}
 		}
 	}
 	
-	public void nearestNeighbourLinking(double[][] C, ArrayList<Spot> spots[], int t, double distanceThreshold) {
+	public void lapLinking(SparseCostMatrix C, SpotTable spots, TrackStore tracks, int t, double birthCost, double deathCost) {
+		// Globally optimal linking: the links minimize the total cost of all links, births and deaths
+		// between timeframe t and t+1 (see SparseLapSolver).
+		// Birth and death costs smaller than or equal to 0 are set to 1.05 x the largest cost in C.
+		int[] links = new SparseLapSolver(birthCost, deathCost).solve(C);
+		for (int i = 0; i < links.length; i++) {
+			if (links[i] >= 0)
+				tracks.link(spots, spots.frameStart(t) + i, spots.frameStart(t+1) + links[i]);
+		}
+	}
+	
+	public void nearestNeighbourLinking(SparseCostMatrix C, SpotTable spots, TrackStore tracks, int t, double distanceThreshold) {
 		// Implementation of nearest neighbor linking, and
 		// BONUS QUESTION: track dividing cells.
 		// ------
 		// Inputs:
 		//
-		// C -> A cost matrix made with the method getCostMatrix().
+		// C -> A sparse cost matrix made with the method getCostMatrix().
 		//		Rows are spots in the current timeframe t, columns are spots in the next timeframe t+1.
 		//		C_ij is the cost between current spot i and next spot j.
+		//		Pairs that are not in C are never linked.
+		//
+		// spots -> Table of spots in all timeframes.
 		//
-		// spots -> Arraylist of spots in all timeframes.
+		// tracks -> Track store in which the links are saved.
 		//
 		// t -> Integer indicating the timeframe.
 		// ------
@@ -120,34 +224,36 @@ public class SpotTracker {
 		// Also, the distance between mother and daughter spots can be at most 30 pixels.
 		// ------
 		
-		int[] closestToCurrent = new int[spots[t].size()];
-		for (int i = 0; i < spots[t].size(); i++) {
-			int closest = 0;
-			for (int j = 0; j < spots[t+1].size(); j++) {
-				if (C[i][j] <= C[i][closest]) 
-					closest = j;
+		// Spots without any candidate pair get -1.
+		int[] closestToCurrent = new int[C.rows()];
+		for (int i = 0; i < C.rows(); i++) {
+			int closest = -1;
+			for (int k = C.rowStart(i); k < C.rowEnd(i); k++) {
+				if (closest < 0 || C.cost(k) <= C.cost(closest)) 
+					closest = k;
 			}
-			closestToCurrent[i] = closest;
+			closestToCurrent[i] = (closest < 0) ? -1 : C.column(closest);
 		}
-		int[] closestToNext = new int[spots[t+1].size()];
-		for (int j = 0; j < spots[t+1].size(); j++) {
-			int closest = 0;
-			for (int i = 0; i < spots[t].size(); i++) {
-				if (C[i][j] <= C[closest][j]) 
-					closest = i;
+		int[] closestToNext = new int[C.cols()];
+		double[] lowestCostToNext = new double[C.cols()];
+		Arrays.fill(closestToNext, -1);
+		for (int i = 0; i < C.rows(); i++) {
+			for (int k = C.rowStart(i); k < C.rowEnd(i); k++) {
+				int j = C.column(k);
+				if (closestToNext[j] < 0 || C.cost(k) <= lowestCostToNext[j]) {
+					closestToNext[j] = i;
+					lowestCostToNext[j] = C.cost(k);
+				}
 			}
-			closestToNext[j] = closest;
 		}
 		// Link spots if an edge between them exists in both closestToCurrent and closestToNext.
 		// and if they are close enough together
-		for (int i = 0; i < spots[t].size(); i++) {
-			if (closestToNext[closestToCurrent[i]]==i) {
-				Spot current = spots[t].get(i);
-				Spot next = spots[t+1].get(closestToCurrent[i]);
-				if (current.distance(next) < distanceThreshold) {
-					next.link(current);
-					next.trace.addAll(current.trace);
-					next.trace.add(i);
+		for (int i = 0; i < C.rows(); i++) {
+			if (closestToCurrent[i] >= 0 && closestToNext[closestToCurrent[i]]==i) {
+				int current = spots.frameStart(t) + i;
+				int next = spots.frameStart(t+1) + closestToCurrent[i];
+				if (spots.distance(current, next) < distanceThreshold) {
+					tracks.link(spots, current, next);
 				}
 			}
 		}
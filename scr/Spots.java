@@ -1,5 +0,0 @@
-import java.util.ArrayList;
-
-public class Spots extends ArrayList<Spot> {
-	
-}
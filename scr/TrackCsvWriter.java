@@ -0,0 +1,44 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class TrackCsvWriter implements TrackSink {
+	// Writes one row per track to a comma separated file, as the tracks end.
+	// Frames are 1-based, as in ImageJ.
+
+	public static final String HEADER = "trackId,firstFrame,lastFrame,steps,startX,startY,endX,endY,pathLength,displacement,speed,angle";
+
+	private BufferedWriter out;
+	private StringBuilder line = new StringBuilder(128);
+
+	public TrackCsvWriter(File file) throws IOException {
+		out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		out.write(HEADER);
+		out.newLine();
+	}
+
+	@Override
+	public void add(TrackSummary track) throws IOException {
+		line.setLength(0);
+		line.append(track.trackId).append(',')
+			.append(track.firstFrame + 1).append(',')
+			.append(track.lastFrame + 1).append(',')
+			.append(track.steps).append(',')
+			.append(track.startX).append(',')
+			.append(track.startY).append(',')
+			.append(track.endX).append(',')
+			.append(track.endY).append(',')
+			.append(track.pathLength).append(',')
+			.append(track.displacement()).append(',')
+			.append(track.speed()).append(',')
+			.append(track.angle());
+		out.write(line.toString());
+		out.newLine();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
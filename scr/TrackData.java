@@ -0,0 +1,28 @@
+public interface TrackData {
+	// Read access to the links between spots (rows of a SpotData).
+	// Implemented by TrackStore (while tracking) and TrackFile (memory-mapped, after tracking).
+
+	int predecessor(int i);
+
+	int successor(int i);
+
+	int trackLength(int i);
+
+	double speed(int i);
+
+	double heading(int i);
+
+	default boolean isTraceEnd(int i) {
+		return successor(i) < 0;
+	}
+
+	default int[] trace(int i) {
+		// Rows of all spots of the track that ends in spot i, from the first to the last spot.
+		int[] trace = new int[trackLength(i) + 1];
+		for (int k = trace.length - 1; k >= 0; k--) {
+			trace[k] = i;
+			i = predecessor(i);
+		}
+		return trace;
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
+
+public class TrackFile implements SpotData, TrackData, Closeable {
+	// Spots and tracks of a movie in a compact binary file, so they can be analysed again without re-running
+	// the detection and linking. The file has the same columns as the SpotTable and TrackStore:
+	//
+	//		header		magic, version, number of spots, first frame, number of frames (5 ints)
+	//		frameStart	frames + 1 ints: spot i of frame t is row frameStart[t - firstFrame] + i
+	//		columns		one block of (number of spots) values per column, in the order of COLUMNS
+	//
+	// All values are 4 bytes, little-endian. A file is opened by memory-mapping every column separately, so only the
+	// pages that are read are loaded, and a column may hold up to 2^29 - 1 spots (MAX_SPOTS: one mapping holds at most
+	// Integer.MAX_VALUE bytes).
+
+	public static final String EXTENSION = ".tracks";
+	public static final int MAX_SPOTS = Integer.MAX_VALUE / 4;
+
+	private static final int MAGIC = 0x4b52544d;		// "MTRK"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 5 * 4;
+	private static final String[] COLUMNS = {"x", "y", "t", "dog", "peak", "mean", "subX", "subY",
+											 "trackId", "predecessor", "successor", "length", "speed", "heading"};
+	private static final int BUFFER_BYTES = 1 << 20;
+
+	// Tracks of spots that are not linked (yet), e.g. to store detected spots only
+	public static final TrackData UNLINKED = new TrackData() {
+		public int predecessor(int i) { return -1; }
+		public int successor(int i) { return -1; }
+		public int trackLength(int i) { return 0; }
+		public double speed(int i) { return Double.NaN; }
+		public double heading(int i) { return Double.NaN; }
+	};
+
+	private FileChannel channel;
+	private int size;
+	private int firstFrame;
+	private int[] frameStart;
+	private IntBuffer x, y, t, trackId, predecessor, successor, length;
+	private FloatBuffer dog, peak, mean, subX, subY, speed, heading;
+
+	public static void write(File file, SpotData spots, TrackData tracks) throws IOException {
+		// Write to a temporary file first, so a file that exists is always complete.
+		int n = spots.size();
+		if (n > MAX_SPOTS)
+			throw new IOException("Too many spots for one track file: " + n + " (at most " + MAX_SPOTS + ")");
+		File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(spots.firstFrame()).putInt(spots.frames());
+			int firstFrame = spots.firstFrame();
+			writeInts(out, buffer, spots.frames() + 1, k -> (k < spots.frames()) ? spots.frameStart(firstFrame + k) : n);
+			writeInts(out, buffer, n, spots::x);
+			writeInts(out, buffer, n, spots::y);
+			writeInts(out, buffer, n, spots::t);
+			writeFloats(out, buffer, n, spots::dog);
+			writeFloats(out, buffer, n, spots::peak);
+			writeFloats(out, buffer, n, spots::mean);
+			writeFloats(out, buffer, n, spots::subX);
+			writeFloats(out, buffer, n, spots::subY);
+			writeInts(out, buffer, n, spots::trackId);
+			writeInts(out, buffer, n, tracks::predecessor);
+			writeInts(out, buffer, n, tracks::successor);
+			writeInts(out, buffer, n, tracks::trackLength);
+			writeFloats(out, buffer, n, tracks::speed);
+			writeFloats(out, buffer, n, tracks::heading);
+			flush(out, buffer);
+		}
+		catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void writeInts(FileChannel out, ByteBuffer buffer, int n, IntUnaryOperator column) throws IOException {
+		for (int i = 0; i < n; i++) {
+			if (buffer.remaining() < 4)
+				flush(out, buffer);
+			buffer.putInt(column.applyAsInt(i));
+		}
+	}
+
+	private static void writeFloats(FileChannel out, ByteBuffer buffer, int n, IntToDoubleFunction column) throws IOException {
+		for (int i = 0; i < n; i++) {
+			if (buffer.remaining() < 4)
+				flush(out, buffer);
+			buffer.putFloat((float) column.applyAsDouble(i));
+		}
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	public static TrackFile open(File file) throws IOException {
+		return new TrackFile(file);
+	}
+
+	private TrackFile(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = map(0, HEADER_BYTES);
+			if (header.getInt() != MAGIC)
+				throw new IOException(file + " is not a track file");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(file + " has version " + version + ", expected " + VERSION);
+			size = header.getInt();
+			firstFrame = header.getInt();
+			int frames = header.getInt();
+			long columnBytes = 4L * size;
+			long offset = HEADER_BYTES + 4L * (frames + 1);
+			if (size < 0 || frames < 0 || channel.size() != offset + COLUMNS.length * columnBytes)
+				throw new IOException(file + " is truncated or damaged");
+
+			// The frame index is small: copy it to the heap
+			frameStart = new int[frames + 1];
+			map(HEADER_BYTES, 4L * (frames + 1)).asIntBuffer().get(frameStart);
+
+			x = map(offset, columnBytes).asIntBuffer();
+			y = map(offset += columnBytes, columnBytes).asIntBuffer();
+			t = map(offset += columnBytes, columnBytes).asIntBuffer();
+			dog = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			peak = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			mean = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			subX = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			subY = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			trackId = map(offset += columnBytes, columnBytes).asIntBuffer();
+			predecessor = map(offset += columnBytes, columnBytes).asIntBuffer();
+			successor = map(offset += columnBytes, columnBytes).asIntBuffer();
+			length = map(offset += columnBytes, columnBytes).asIntBuffer();
+			speed = map(offset += columnBytes, columnBytes).asFloatBuffer();
+			heading = map(offset += columnBytes, columnBytes).asFloatBuffer();
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer map(long offset, long bytes) throws IOException {
+		if (bytes > Integer.MAX_VALUE)
+			throw new IOException("Too many spots for one track file: " + size + " (at most " + MAX_SPOTS + ")");
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The mappings stay valid until they are garbage collected, the file itself is closed here.
+		channel.close();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int frames() {
+		return frameStart.length - 1;
+	}
+
+	public int firstFrame() {
+		return firstFrame;
+	}
+
+	public int frameStart(int t) {
+		return frameStart[t - firstFrame];
+	}
+
+	public int frameEnd(int t) {
+		return frameStart[t - firstFrame + 1];
+	}
+
+	public int x(int i) {
+		return x.get(i);
+	}
+
+	public int y(int i) {
+		return y.get(i);
+	}
+
+	public int t(int i) {
+		return t.get(i);
+	}
+
+	public float dog(int i) {
+		return dog.get(i);
+	}
+
+	public float peak(int i) {
+		return peak.get(i);
+	}
+
+	public float mean(int i) {
+		return mean.get(i);
+	}
+
+	public float subX(int i) {
+		return subX.get(i);
+	}
+
+	public float subY(int i) {
+		return subY.get(i);
+	}
+
+	public int trackId(int i) {
+		return trackId.get(i);
+	}
+
+	public int predecessor(int i) {
+		return predecessor.get(i);
+	}
+
+	public int successor(int i) {
+		return successor.get(i);
+	}
+
+	public int trackLength(int i) {
+		return length.get(i);
+	}
+
+	public double speed(int i) {
+		return speed.get(i);
+	}
+
+	public double heading(int i) {
+		return heading.get(i);
+	}
+}
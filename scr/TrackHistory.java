@@ -0,0 +1,60 @@
+public class TrackHistory {
+	// The last positions of a track, in a ring buffer.
+	// Keeps the sum of the last step lengths, so the speed and heading of the track
+	// over the past numberOfFramesInPast frames are updated in O(1) when the track grows.
+
+	private int capacity;			// number of steps kept (numberOfFramesInPast)
+	private int[] xs;				// last capacity + 1 positions
+	private int[] ys;
+	private double[] steps;			// last capacity step lengths, steps[k] ends at position k
+	private double stepSum = 0;
+	private int count = 0;			// number of positions stored
+	private int head = -1;			// slot of the newest position
+	private int added = 0;			// steps added since the step sum was last recomputed
+
+	public TrackHistory(int numberOfFramesInPast) {
+		capacity = Math.max(0, numberOfFramesInPast);
+		xs = new int[capacity + 1];
+		ys = new int[capacity + 1];
+		steps = new double[capacity + 1];
+	}
+
+	public void add(int x, int y) {
+		// Add the next position of the track. The oldest position is dropped when the buffer is full.
+		int slot = (head + 1) % xs.length;
+		if (count > 0) {
+			double dx = x - xs[head];
+			double dy = y - ys[head];
+			double step = Math.sqrt(dx * dx + dy * dy);
+			if (count == xs.length)
+				stepSum -= steps[(slot + 1) % xs.length];	// step that ends at the position that becomes the oldest
+			stepSum += step;
+			steps[slot] = step;
+		}
+		xs[slot] = x;
+		ys[slot] = y;
+		head = slot;
+		count = Math.min(count + 1, xs.length);
+		// Recompute the sum now and then, so rounding errors do not pile up on long tracks
+		if (++added > capacity) {
+			added = 0;
+			stepSum = 0;
+			for (int k = 1; k < count; k++)
+				stepSum += steps[(head - k + 1 + xs.length) % xs.length];
+		}
+	}
+
+	public double speed() {
+		// Average step length, or NaN if the track has no steps.
+		int n = count - 1;
+		return (n > 0) ? stepSum / n : Double.NaN;
+	}
+
+	public double heading() {
+		// Angle from the oldest to the newest position, or NaN if the track has no steps.
+		if (count < 2)
+			return Double.NaN;
+		int oldest = (head - count + 1 + xs.length) % xs.length;
+		return Math.atan2(ys[head] - ys[oldest], xs[head] - xs[oldest]);
+	}
+}
@@ -0,0 +1,138 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+public class TrackPolylineRoi extends PolygonRoi {
+	// A whole track as one polyline, instead of one Line per step.
+	// When it is drawn as part of an overlay, the polyline is simplified with Douglas-Peucker for the current zoom:
+	// points that are less than half a screen pixel away from the simplified line are left out.
+	// The simplification is cached until the magnification changes. The Roi itself keeps all points.
+
+	private static final double TOLERANCE = 0.5;	// screen pixels
+
+	private float[] xs;
+	private float[] ys;
+	private boolean simplify = true;
+	private double simplifiedMag = Double.NaN;
+	private int[] simplified;						// indices of the points that are drawn
+
+	public TrackPolylineRoi(float[] xs, float[] ys) {
+		super(xs, ys, xs.length, Roi.POLYLINE);
+		this.xs = xs;
+		this.ys = ys;
+	}
+
+	public static TrackPolylineRoi forTrace(SpotData spots, TrackData tracks, int end) {
+		// The track that ends in spot end, colored by its angle
+		int[] trace = tracks.trace(end);
+		int first = trace[0];
+		double angle = Math.atan2(spots.y(end) - spots.y(first), spots.x(end) - spots.x(first));
+		double rescaledAngle = (angle + Math.PI) / Math.PI;
+		Color color = Color.getHSBColor((float)rescaledAngle, 1f, 1f);
+		color = new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
+
+		float[] xs = new float[trace.length];
+		float[] ys = new float[trace.length];
+		for (int k = 0; k < trace.length; k++) {
+			xs[k] = spots.x(trace[k]);
+			ys[k] = spots.y(trace[k]);
+		}
+		TrackPolylineRoi polyline = new TrackPolylineRoi(xs, ys);
+		polyline.setStrokeColor(color);
+		polyline.setStrokeWidth(1);
+		return polyline;
+	}
+
+	public void setSimplify(boolean simplify) {
+		this.simplify = simplify;
+		simplifiedMag = Double.NaN;
+	}
+
+	@Override
+	public void drawOverlay(Graphics g) {
+		double mag = getMagnification();
+		if (mag != simplifiedMag) {
+			simplified = simplify ? simplify(TOLERANCE / mag) : all();
+			simplifiedMag = mag;
+		}
+		int n = simplified.length;
+		int[] sx = new int[n];
+		int[] sy = new int[n];
+		for (int k = 0; k < n; k++) {
+			sx[k] = screenXD(xs[simplified[k]]);
+			sy[k] = screenYD(ys[simplified[k]]);
+		}
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setColor(getStrokeColor());
+		g2.setStroke(new BasicStroke(Math.max(1, getStrokeWidth())));
+		g2.drawPolyline(sx, sy, n);
+	}
+
+	private int[] all() {
+		int[] indices = new int[xs.length];
+		for (int k = 0; k < indices.length; k++)
+			indices[k] = k;
+		return indices;
+	}
+
+	public int[] simplify(double tolerance) {
+		// Douglas-Peucker: keep the point farthest from the line between the ends of a piece if it is farther
+		// than tolerance, and split the piece there. Uses a stack of pieces instead of recursion.
+		int n = xs.length;
+		if (n <= 2)
+			return all();
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n - 1] = true;
+		int kept = 2;
+		int[] stack = new int[2 * n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		double tolerance2 = tolerance * tolerance;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double dx = xs[last] - xs[first];
+			double dy = ys[last] - ys[first];
+			double length2 = dx * dx + dy * dy;
+			double maxDistance2 = -1;
+			int farthest = -1;
+			for (int k = first + 1; k < last; k++) {
+				double px = xs[k] - xs[first];
+				double py = ys[k] - ys[first];
+				double distance2;
+				if (length2 == 0) {
+					distance2 = px * px + py * py;
+				}
+				else {
+					double cross = px * dy - py * dx;
+					distance2 = cross * cross / length2;
+				}
+				if (distance2 > maxDistance2) {
+					maxDistance2 = distance2;
+					farthest = k;
+				}
+			}
+			if (farthest >= 0 && maxDistance2 > tolerance2) {
+				keep[farthest] = true;
+				kept++;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+		int[] indices = new int[kept];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i])
+				indices[k++] = i;
+		}
+		return indices;
+	}
+}
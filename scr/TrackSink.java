@@ -0,0 +1,9 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface TrackSink extends Closeable {
+	// Receives every track once, when it has ended, while tracking is still running.
+	// The summary object is reused for the next track, so a sink must copy what it keeps.
+
+	void add(TrackSummary track) throws IOException;
+}
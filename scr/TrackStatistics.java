@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.gui.Plot;
+
+public class TrackStatistics {
+	// Statistics of the trajectories, collected while the tracks are linked, in primitive arrays only:
+	// - per frame: mean and standard deviation (Welford) of the trajectory length, speed and angle of its spots
+	// - per track: histograms of the length, speed and angle of every track when it ends
+	// Finished tracks are also passed on to a TrackSink (e.g. a TrackCsvWriter), so nothing per spot is kept.
+	// If the sink fails, it is dropped and the tracks are only counted from then on (see sinkError).
+
+	public static final int LENGTH = 0;
+	public static final int SPEED = 1;
+	public static final int ANGLE = 2;
+	private static final String[] NAMES = {"Trajectory length", "Speed", "Angle"};
+
+	private static final double SPEED_BIN = 0.25;		// pixels per frame
+	private static final int ANGLE_BINS = 36;
+
+	private TrackSink sink;								// null: tracks are only counted
+	private IOException sinkError;						// first error of the sink (null: none)
+	private TrackSummary summary = new TrackSummary();
+
+	// Per frame, for every statistic
+	private int frames = 0;
+	private int[][] count = new int[3][64];
+	private double[][] mean = new double[3][64];
+	private double[][] m2 = new double[3][64];
+
+	// Per track
+	private int tracks = 0;
+	private int[] lengthHistogram = new int[16];		// bin k: tracks with k steps
+	private int[] speedHistogram = new int[16];
+	private int[] angleHistogram = new int[ANGLE_BINS];
+
+	public TrackStatistics(TrackSink sink) {
+		this.sink = sink;
+	}
+
+	public void addFrame(SpotData spots, TrackData tracks, int t) {
+		// Add the spots of frame t. Must be called in frame order, after frame t has been linked to frame t+1
+		// (the tracks that do not continue into frame t+1 are then finished).
+		int k = t - spots.firstFrame();
+		if (k >= count[0].length)
+			grow(Math.max(2 * count[0].length, k + 1));
+		frames = Math.max(frames, k + 1);
+		for (int i = spots.frameStart(t); i < spots.frameEnd(t); i++) {
+			add(LENGTH, k, tracks.trackLength(i));
+			add(SPEED, k, tracks.speed(i));
+			add(ANGLE, k, tracks.heading(i));
+			if (tracks.isTraceEnd(i) && tracks.trackLength(i) > 0)
+				finish(spots, tracks, i);
+		}
+	}
+
+	private void add(int stat, int k, double value) {
+		// Welford update; spots without a speed or angle (NaN) are not counted
+		if (Double.isNaN(value))
+			return;
+		int n = ++count[stat][k];
+		double delta = value - mean[stat][k];
+		mean[stat][k] += delta / n;
+		m2[stat][k] += delta * (value - mean[stat][k]);
+	}
+
+	private void finish(SpotData spots, TrackData tracks, int end) {
+		// Summarize the track that ends in spot end, by following its predecessors
+		double pathLength = 0;
+		int i = end;
+		int previous = tracks.predecessor(i);
+		while (previous >= 0) {
+			pathLength += spots.distance(i, previous);
+			i = previous;
+			previous = tracks.predecessor(i);
+		}
+		summary.trackId = spots.trackId(end);
+		summary.firstFrame = spots.t(i);
+		summary.lastFrame = spots.t(end);
+		summary.steps = tracks.trackLength(end);
+		summary.startX = spots.x(i);
+		summary.startY = spots.y(i);
+		summary.endX = spots.x(end);
+		summary.endY = spots.y(end);
+		summary.pathLength = pathLength;
+
+		this.tracks++;
+		if (summary.steps >= lengthHistogram.length)
+			lengthHistogram = Arrays.copyOf(lengthHistogram, Math.max(2 * lengthHistogram.length, summary.steps + 1));
+		lengthHistogram[summary.steps]++;
+		int speedBin = (int) (summary.speed() / SPEED_BIN);
+		if (speedBin >= speedHistogram.length)
+			speedHistogram = Arrays.copyOf(speedHistogram, Math.max(2 * speedHistogram.length, speedBin + 1));
+		speedHistogram[speedBin]++;
+		int angleBin = (int) ((summary.angle() + Math.PI) / (2 * Math.PI) * ANGLE_BINS);
+		angleHistogram[Math.min(ANGLE_BINS - 1, angleBin)]++;
+
+		if (sink != null) {
+			try {
+				sink.add(summary);
+			}
+			catch (IOException e) {
+				IJ.log("Cannot write track " + summary.trackId + ": " + e.getMessage() + "; the other tracks are only counted");
+				sinkError = e;
+				sink = null;
+			}
+		}
+	}
+
+	public int tracks() {
+		return tracks;
+	}
+
+	public IOException sinkError() {
+		// Error that made the sink stop receiving tracks, or null if it received all tracks
+		return sinkError;
+	}
+
+	public double mean(int stat, int t) {
+		return (count[stat][t] > 0) ? mean[stat][t] : Double.NaN;
+	}
+
+	public double standardDeviation(int stat, int t) {
+		return (count[stat][t] > 1) ? Math.sqrt(m2[stat][t] / (count[stat][t] - 1)) : 0;
+	}
+
+	public Plot plotOverTime(int stat) {
+		// Mean (with the standard deviation as error bars) of a statistic of the spots in every frame.
+		double[] time = new double[frames];
+		double[] means = new double[frames];
+		double[] sds = new double[frames];
+		for (int t = 0; t < frames; t++) {
+			time[t] = t + 1;
+			means[t] = mean(stat, t);
+			sds[t] = standardDeviation(stat, t);
+		}
+		Plot plot = new Plot("Results (" + NAMES[stat] + ")", "Time", NAMES[stat]);
+		plot.add("circle", time, means);
+		plot.addErrorBars(sds);
+		return plot;
+	}
+
+	public Plot trackHistogram(int stat) {
+		// Number of tracks per bin of their length, speed or angle.
+		int[] histogram;
+		double binWidth;
+		double start;
+		if (stat == LENGTH) {
+			histogram = lengthHistogram;
+			binWidth = 1;
+			start = 0;
+		}
+		else if (stat == SPEED) {
+			histogram = speedHistogram;
+			binWidth = SPEED_BIN;
+			start = 0;
+		}
+		else {
+			histogram = angleHistogram;
+			binWidth = 2 * Math.PI / ANGLE_BINS;
+			start = -Math.PI;
+		}
+		int bins = histogram.length;
+		while (bins > 1 && histogram[bins - 1] == 0)
+			bins--;
+		double[] centers = new double[bins];
+		double[] counts = new double[bins];
+		for (int k = 0; k < bins; k++) {
+			centers[k] = start + (k + 0.5) * binWidth;
+			counts[k] = histogram[k];
+		}
+		Plot plot = new Plot("Tracks (" + NAMES[stat] + ")", NAMES[stat], "Number of tracks");
+		plot.add("bar", centers, counts);
+		return plot;
+	}
+
+	private void grow(int capacity) {
+		for (int stat = 0; stat < 3; stat++) {
+			count[stat] = Arrays.copyOf(count[stat], capacity);
+			mean[stat] = Arrays.copyOf(mean[stat], capacity);
+			m2[stat] = Arrays.copyOf(m2[stat], capacity);
+		}
+	}
+}
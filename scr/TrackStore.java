@@ -0,0 +1,126 @@
+import java.util.Arrays;
+
+public class TrackStore implements TrackData {
+	// Tracks stored as predecessor indices: a spot only knows the row (in the SpotTable) of the spot
+	// in the previous frame that it was linked to, and the length of its track. The history of a track is
+	// found by following the predecessors, so extending a track never copies it.
+	// The speed and angle of every track end are kept too, updated with a TrackHistory when a track is extended.
+
+	private int numberOfFramesInPast;
+	private int[] predecessor;			// row of the previous spot of the track (-1 if none)
+	private int[] successor;			// row of the next spot of the track (-1 if none)
+	private int[] length;				// number of predecessors
+	private double[] speed;				// average speed over the past numberOfFramesInPast frames (NaN if unlinked)
+	private double[] heading;			// angle over the past numberOfFramesInPast frames (NaN if unlinked)
+	private int tracks = 0;				// number of track ids given out
+
+	// Histories of the tracks that end in the frames that are being linked
+	private int historyFrame = -1;
+	private TrackHistory[] currentHistories;
+	private TrackHistory[] nextHistories;
+
+	public TrackStore(SpotTable spots, int numberOfFramesInPast) {
+		this.numberOfFramesInPast = numberOfFramesInPast;
+		int n = spots.size();
+		predecessor = new int[n];
+		successor = new int[n];
+		length = new int[n];
+		speed = new double[n];
+		heading = new double[n];
+		Arrays.fill(predecessor, -1);
+		Arrays.fill(successor, -1);
+		Arrays.fill(speed, Double.NaN);
+		Arrays.fill(heading, Double.NaN);
+	}
+
+	public void link(SpotTable spots, int i, int j) {
+		// Continue the track that ends in spot i (frame t) with spot j (frame t+1).
+		// Frames are expected to be linked in order; a spot can only be continued by one spot.
+		int t = spots.t(i);
+		if (t != historyFrame) {
+			currentHistories = (t == historyFrame + 1 && nextHistories != null) ? nextHistories : new TrackHistory[spots.frameSize(t)];
+			nextHistories = new TrackHistory[spots.frameSize(t+1)];
+			historyFrame = t;
+		}
+		int local = i - spots.frameStart(t);
+		TrackHistory history = currentHistories[local];
+		currentHistories[local] = null;
+		if (history == null) {
+			history = new TrackHistory(numberOfFramesInPast);
+			history.add(spots.x(i), spots.y(i));
+		}
+		history.add(spots.x(j), spots.y(j));
+		nextHistories[j - spots.frameStart(t+1)] = history;
+
+		if (spots.trackId(i) < 0)
+			spots.setTrackId(i, tracks++);
+		spots.setTrackId(j, spots.trackId(i));
+		predecessor[j] = i;
+		successor[i] = j;
+		length[j] = length[i] + 1;
+		speed[j] = history.speed();
+		heading[j] = history.heading();
+	}
+
+	public void continueTrack(SpotTable spots, int i, int length, double speed, double heading, TrackHistory history) {
+		// Spot i (of the first frame that will be linked) ends a track that was linked before this store was made,
+		// e.g. by the OnlineTracker, which only keeps the last frame. Its track id must be set in spots.
+		int t = spots.t(i);
+		if (historyFrame != t - 1 || nextHistories == null) {
+			historyFrame = t - 1;
+			nextHistories = new TrackHistory[spots.frameSize(t)];
+		}
+		nextHistories[i - spots.frameStart(t)] = history;
+		this.length[i] = length;
+		this.speed[i] = speed;
+		this.heading[i] = heading;
+	}
+
+	public TrackHistory history(SpotTable spots, int j) {
+		// History of the track that ends in spot j of the frame that was linked last (null if j starts a track)
+		int t = spots.t(j);
+		if (t != historyFrame + 1 || nextHistories == null)
+			return null;
+		return nextHistories[j - spots.frameStart(t)];
+	}
+
+	public int trackCount() {
+		// Number of track ids given out
+		return tracks;
+	}
+
+	public void setTrackCount(int tracks) {
+		// New tracks get ids from tracks on
+		this.tracks = tracks;
+	}
+
+	public int predecessor(int i) {
+		return predecessor[i];
+	}
+
+	public int successor(int i) {
+		return successor[i];
+	}
+
+	public int trackLength(int i) {
+		return length[i];
+	}
+
+	public double speed(int i) {
+		return speed[i];
+	}
+
+	public double heading(int i) {
+		return heading[i];
+	}
+
+	public double[] trajectoryStatistics(int i) {
+		// Length, speed and angle of the trajectory of spot i,
+		// over the past numberOfFramesInPast frames.
+		double[] results = new double[3];
+		results[0] = length[i];
+		results[1] = speed[i];
+		results[2] = heading[i];
+		return results;
+	}
+}
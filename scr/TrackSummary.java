@@ -0,0 +1,28 @@
+public class TrackSummary {
+	// Summary of one finished track: where and when it started and ended, and how far it moved.
+
+	public int trackId;
+	public int firstFrame;
+	public int lastFrame;
+	public int steps;					// number of links (frames - 1)
+	public double startX;
+	public double startY;
+	public double endX;
+	public double endY;
+	public double pathLength;			// sum of the step lengths
+
+	public double displacement() {
+		// Distance from the first to the last position
+		return Math.sqrt((endX - startX) * (endX - startX) + (endY - startY) * (endY - startY));
+	}
+
+	public double speed() {
+		// Average step length
+		return (steps > 0) ? pathLength / steps : Double.NaN;
+	}
+
+	public double angle() {
+		// Angle from the first to the last position
+		return Math.atan2(endY - startY, endX - startX);
+	}
+}
@@ -1,14 +1,15 @@
 import java.awt.Color;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
 import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.GenericDialog;
-import ij.gui.Line;
 import ij.gui.Overlay;
-import ij.gui.Plot;
+import ij.io.FileInfo;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 
@@ -30,130 +31,153 @@ public class Track_Microtubules implements PlugIn {
 				return;
 			}
 			// Get denoising parameters
-			double sigmaXY = gd_denoise.getNextNumber();
-			double sigmaT = gd_denoise.getNextNumber();
+			TrackingParameters p = new TrackingParameters();
+			p.readDenoising(gd_denoise);
 			
-			ImagePlus img = original.duplicate();
-			original.hide();
-			img.show();
+			// Time, allocations and counts of every stage and frame, written to <movie>_metrics.json and .csv
+			RunMetrics metrics = new RunMetrics(original.getNFrames());
+			denoiser.setMetrics(metrics);
+			detector.setMetrics(metrics);
+			tracker.setMetrics(metrics);
 			
-			// Do the preprocessing (denoising + background subtraction)
-			IJ.log("Blurring ...");
-			denoiser.gaussianBlur3D(img, sigmaXY, sigmaT);
-			ImagePlus medianProj = denoiser.medianProjection(img);
-			img = denoiser.subtractBackground(img, medianProj);
-			img.show();
+			// In streaming mode, the preprocessing is done frame by frame together with the spot detection,
+			// so the stack is never duplicated.
+			ImagePlus img = original;
+			if (!p.streaming) {
+				img = original.duplicate();
+				original.hide();
+				img.show();
+				
+				// Do the preprocessing (denoising + background subtraction)
+				IJ.log("Blurring ...");
+				metrics.begin(RunMetrics.DENOISE);
+				denoiser.gaussianBlur3D(img, p.sigmaXY, p.sigmaT);
+				metrics.end(RunMetrics.DENOISE);
+				metrics.begin(RunMetrics.BACKGROUND);
+				if (p.backgroundWindow > 0) {
+					img = denoiser.subtractRollingBackground(img, p.backgroundWindow);
+				}
+				else {
+					ImagePlus medianProj = denoiser.medianProjection(img);
+					img = denoiser.subtractBackground(img, medianProj);
+				}
+				metrics.end(RunMetrics.BACKGROUND);
+				img.show();
+			}
 			
 			// GUI 2: Spot detection GUI
-			GenericDialog gd_detection = new SetupDetectionDialog().showDialog(original);
+			// (in streaming mode the preview preprocesses the frame itself, as no preprocessed stack is shown)
+			GenericDialog gd_detection = new SetupDetectionDialog().showDialog(original, p.streaming ? p : null);
 			if (gd_detection.wasCanceled()) {
 				return;
 			}
-			// Get spot detection parameters
-			double sigmaDOG = gd_detection.getNextNumber();					// sigma for DoG
-			double DOGthreshold = gd_detection.getNextNumber();				// threshold of localmax after DoG filter
-			int maxSpotDistance = (int) gd_detection.getNextNumber();    	// maximal distance between neighboring spots
-			
-			// Get spot tracking parameters
-			double maxSpotMovement = gd_detection.getNextNumber(); 			// maximal movement of a spot in one timeframe
-			int numberOfFramesInPast = (int) gd_detection.getNextNumber(); 	// number of frames in the past used to calculate speed of a spot
-
-			// Get cost function parameters
-			double betaDist = gd_detection.getNextNumber();
-			double betaIntensity = gd_detection.getNextNumber();
-			double betaSpeed = gd_detection.getNextNumber(); 
-			double betaAngle = gd_detection.getNextNumber();
+			// Get spot detection, tracking and cost function parameters
+			p.readDetection(gd_detection);
 						
-			// Run difference of Gaussian
-			// To save memory, we do this on each slice seperately
-			IJ.log("Running DoG ...");
 			int nt = img.getNFrames();
-			ArrayList<Spot> spots[] = new Spots[nt];
-			for (int t = 0; t < nt; t++) {
-				IJ.log("Running DoG, timeframe "+t);
-				img.setSlice(t + 1);
-				ImagePlus dog = detector.dog(img, sigmaDOG);
-				// Detect spots by detecting local maxima in DoG
-				ArrayList<Spot> localmax = detector.localMax(dog, maxSpotDistance, DOGthreshold, t);
-				spots[t] = detector.filter(localmax, maxSpotDistance);
+			// Spots detected earlier in the same movie with the same denoising and detection parameters
+			// are read from the cache, so only the tracking is done again.
+			metrics.begin(RunMetrics.DETECT);
+			DetectionCache cache = DetectionCache.defaultCache();
+			String cacheKey = cache.key(original, p, p.streaming);
+			SpotTable spots = cache.get(cacheKey);
+			boolean cached = spots != null;
+			if (cached) {
+				IJ.log("Spots read from the detection cache.");
+			}
+			else if (p.streaming) {
+				// Denoise, subtract background and detect spots in one pass over the frames
+				FramePipeline pipeline = new FramePipeline(p.sigmaXY, p.sigmaT, p.sigmaDOG, p.DOGthreshold, p.maxSpotDistance);
+				pipeline.setBackgroundWindow(p.backgroundWindow);
+				pipeline.setTileSize(p.tileSize);
+				pipeline.setMetrics(metrics);
+				spots = pipeline.run(original);
 			}
+			else {
+				// Run difference of Gaussian and detect spots by detecting local maxima in DoG.
+				// To save memory, we do this on each slice seperately, and several slices in parallel.
+				IJ.log("Running DoG ...");
+				detector.setTileSize(p.tileSize);
+				spots = detector.detectAll(img.getStack(), nt, p.sigmaDOG, p.DOGthreshold, p.maxSpotDistance, Prefs.getThreads());
+			}
+			metrics.end(RunMetrics.DETECT);
+			if (!cached)
+				cache.put(cacheKey, spots);
 									
 			// Link spots
+			// (the tracker only uses the features measured during detection, not the image)
+			// The statistics are collected while linking, and every finished track is written to a CSV file.
+			// If the file cannot be written (e.g. a read-only directory), the spots are still tracked and shown.
 			IJ.log("Linking spots ...");
-			for (int t = 0; t < nt - 1; t++) {
-				img.setSlice(t+1);
-				double[][] C = tracker.getCostMatrix(spots, img,
-													 betaDist, betaIntensity, betaSpeed, betaAngle, numberOfFramesInPast);
-				tracker.nearestNeighbourLinking(C, spots, t, maxSpotMovement);
-				
+			File tracksFile = resultsFile(original, "_tracks.csv");
+			TrackCsvWriter writer = null;
+			try {
+				writer = new TrackCsvWriter(tracksFile);
 			}
-			
-			// Calculate trajectory length, speed and angle of all particles
-			Overlay overlayTraces = new Overlay();
-			int numResults = 0;										// keep track of the number of particles with a valid speed
-			ArrayList[] trajectoryLengthDistribution = new ArrayList[nt]; 	// List of arraylists with angles
-			ArrayList[] speedDistribution = new ArrayList[nt]; 				// List of arraylists with speeds
-			ArrayList[] angleDistribution = new ArrayList[nt]; 				// List of arraylists with angles
-			for (int t = 0; t < nt; t++) {
-				IJ.log("Time = "+t);
-				ArrayList<Double> lengths = new ArrayList<Double>(); // Arraylist of doubles
-				ArrayList<Double> speeds = new ArrayList<Double>(); // Arraylist of doubles
-				ArrayList<Double> angles = new ArrayList<Double>(); // Arraylist of doubles
-				for (Spot spot : spots[t]) {
-					double[] stats = spot.trajectoryStatistics(spots, numberOfFramesInPast);
-					lengths.add( stats[0] );
-					speeds.add( stats[1] );
-					angles.add( stats[2] );
-					numResults += 1;
+			catch (IOException e) {
+				IJ.log("Cannot write " + tracksFile + ": " + e.getMessage());
+			}
+			TrackStatistics statistics = new TrackStatistics(writer);
+			metrics.begin(RunMetrics.LINK);
+			TrackStore tracks = tracker.track(spots, p, statistics);
+			metrics.end(RunMetrics.LINK);
+			if (statistics.sinkError() != null)
+				closeQuietly(writer);	// the statistics logged the error and kept counting
+			else if (writer != null) {
+				try {
+					writer.close();
+					IJ.log(statistics.tracks() + " tracks written to " + tracksFile);
+				}
+				catch (IOException e) {
+					IJ.log("Cannot write " + tracksFile + ": " + e.getMessage());
 				}
-				trajectoryLengthDistribution[t] = lengths;
-				speedDistribution[t] = speeds;						// Add arraylist of speeds to speedDistribution list
-				angleDistribution[t] = angles;						// Add arraylist of speeds to angleDistribution list
 			}
 			
-			// Plot a distribution of speeds
-			double[] resultsLength = new double[numResults];
-			double[] resultsSpeed = new double[numResults];
-			double[] resultsAngle = new double[numResults];
-			double[] xArray = new double[numResults];
+			// Keep all spots and tracks in a track file, to analyse them again without re-running (see Show_Tracks)
+			File trackFile = resultsFile(original, TrackFile.EXTENSION);
+			metrics.begin(RunMetrics.WRITE);
+			long start = RunMetrics.now(), bytes = RunMetrics.allocated();
+			try {
+				TrackFile.write(trackFile, spots, tracks);
+			}
+			catch (IOException e) {
+				IJ.log("Cannot write " + trackFile + ": " + e.getMessage());
+			}
+			metrics.record(RunMetrics.WRITE, -1, start, bytes);
+			metrics.end(RunMetrics.WRITE);
 			
-			int count = 0;
-			for (int t = 0; t < nt; t++) {
-				for (int i = 0; i < speedDistribution[t].size(); i++) {
-					resultsLength[count] = (double)trajectoryLengthDistribution[t].get(i);
-					resultsSpeed[count] = (double)speedDistribution[t].get(i);
-					resultsAngle[count] = (double)angleDistribution[t].get(i);
-					xArray[count] = t + 1;
-					count += 1;
-				}
+			// Report the metrics of the run
+			IJ.log(metrics.summary());
+			try {
+				metrics.writeJson(resultsFile(original, "_metrics.json"));
+				metrics.writeCsv(resultsFile(original, "_metrics.csv"));
+			}
+			catch (IOException e) {
+				IJ.log("Cannot write the metrics: " + e.getMessage());
 			}
 			
+			Overlay overlayTraces = new Overlay();
+			
 			// If the spot is at the end of the trace, 
 			// and if the trace is long enough, then draw its trace.
 			for (int t = 0; t < nt; t++) {
-				for (Spot spot : spots[t]) {
-					if (spot.isTraceEnd() & (spot.trace.size() > 5)){
-						drawTrace(overlayTraces, spot, spots);
+				for (int i = spots.frameStart(t); i < spots.frameEnd(t); i++) {
+					if (tracks.isTraceEnd(i) & (tracks.trackLength(i) > 5)){
+						drawTrace(overlayTraces, tracks, spots, i);
 					}
 				}
 			}
 			
-			// Add results to plots
-			Plot plotLength = new Plot("Results traces", "Time", "Trajectory lengts");
-			plotLength.add("circle", xArray, resultsLength);
-			plotLength.show();
-			
-			Plot plotSpeed = new Plot("Results", "Time", "Speed");
-			plotSpeed.add("circle", xArray, resultsSpeed);
-			plotSpeed.show();
-			
-			Plot plotAngle = new Plot("Results", "Time", "Angle");
-			plotAngle.add("circle", xArray, resultsAngle);
-			plotAngle.show();
+			// Plot the distributions (binned per frame and per track)
+			for (int stat = TrackStatistics.LENGTH; stat <= TrackStatistics.ANGLE; stat++) {
+				statistics.plotOverTime(stat).show();
+				statistics.trackHistogram(stat).show();
+			}
 			
-			// Draw traces as overlay
-			Overlay overlaySpots = new Overlay();
-			drawSpots(overlaySpots, spots);
+			// Draw traces and spots as overlay
+			// (not selectable: the spots are one Roi over the whole image, which a click would select)
+			drawSpots(overlayTraces, spots, tracks, original);
+			overlayTraces.selectable(false);
 			original.setOverlay(overlayTraces);
 			original.show();
 			makeColorBar(256, 50, "0", "2 pi");
@@ -162,35 +186,37 @@ public class Track_Microtubules implements PlugIn {
 
 	}
 	
-	private void drawSpots(Overlay overlay, ArrayList<Spot> spots[]) {
-		int nt = spots.length;
-		for (int t = 0; t < nt; t++)
-			for (Spot spot : spots[t])
-				spot.draw(overlay);
+	static File resultsFile(ImagePlus imp, String suffix) {
+		// File next to the movie (or in the temporary directory if the movie was not opened from a file)
+		FileInfo info = imp.getOriginalFileInfo();
+		String directory = (info != null && info.directory != null && !info.directory.isEmpty()) ? info.directory : IJ.getDirectory("temp");
+		String name = imp.getTitle();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return new File(directory, name + suffix);
 	}
 	
-	private void drawTrace(Overlay overlay, Spot spot, ArrayList<Spot> spots[]) {
-		
-		// Use angle as color;
-		int startTime = spot.t - spot.trace.size(); // timepoint where the trace started
-		Spot first = spots[startTime].get(spot.trace.get(0));
-		double angle = Math.atan2(spot.y - first.y, spot.x - first.x);
-		double rescaledAngle = (angle + Math.PI) / Math.PI;
-		Color color = Color.getHSBColor((float)rescaledAngle, 1f, 1f);
-		color = new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
-		
-		// Trace back this trace and draw a line
-		for (int i = 0; i < spot.trace.size()-1; i++) {
-			int time = spot.t - spot.trace.size() + i;
-			Spot current = spots[time].get(spot.trace.get(i));
-			Spot next = spots[time+1].get(spot.trace.get(i+1));
-			Line line = new Line(current.x, current.y, next.x, next.y);
-			line.setStrokeColor(color);
-			line.setStrokeWidth(1);
-			overlay.add(line);
+	private void closeQuietly(TrackCsvWriter writer) {
+		try {
+			if (writer != null)
+				writer.close();
+		}
+		catch (IOException e) {
+			// Already reported
 		}
 	}
 	
+	private void drawSpots(Overlay overlay, SpotTable spots, TrackStore tracks, ImagePlus imp) {
+		// One Roi draws the spots of the displayed frame, instead of one Roi per spot
+		overlay.add(new SpotOverlayRoi(spots, tracks, imp.getWidth(), imp.getHeight()));
+	}
+	
+	private void drawTrace(Overlay overlay, TrackStore tracks, SpotTable spots, int i) {
+		// Draw the whole trace that ends in spot i as one polyline, with its angle as color
+		overlay.add(TrackPolylineRoi.forTrace(spots, tracks, i));
+	}
+	
 	private void makeColorBar(int width, int height, String startValue, String endValue) {
 		// Create HSB colorbar.
 		ImagePlus colorbar = IJ.createImage("Color bar", "RGB", width, height, 1);
@@ -0,0 +1,97 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import ij.gui.GenericDialog;
+
+public class TrackingParameters {
+	// All parameters of a tracking run, with the same defaults as the dialogs.
+	// They are read from the dialogs, or from a parameter file (java properties, e.g. "sigmaXY = 1").
+
+	// Denoising
+	public double sigmaXY = 1;
+	public double sigmaT = 2;
+	public boolean streaming = false;
+	public int backgroundWindow = 0;			// frames in the rolling median background (0 = median of the whole movie)
+
+	// Spot detection
+	public double sigmaDOG = 3;					// sigma for DoG
+	public double DOGthreshold = 1;				// threshold of localmax after DoG filter
+	public int maxSpotDistance = 5;				// maximal distance between neighboring spots
+	public int tileSize = 0;					// frames larger than this are detected in tiles (0 = whole frame)
+
+	// Spot tracking
+	public double maxSpotMovement = 15;			// maximal movement of a spot in one timeframe
+	public int numberOfFramesInPast = 10;		// number of frames in the past used to calculate speed of a spot
+	public boolean globalLinking = false;		// LAP linking instead of nearest neighbours
+	public double birthDeathCost = 0;			// cost to start or end a track (global linking only, 0 = automatic)
+
+	// Cost function
+	public double betaDist = 0.25;
+	public double betaIntensity = 0.25;
+	public double betaSpeed = 0.25;
+	public double betaAngle = 0.25;
+
+	public void readDenoising(GenericDialog gd) {
+		// Read the fields of the SetupDenoisingDialog, in the order they were added.
+		sigmaXY = gd.getNextNumber();
+		sigmaT = gd.getNextNumber();
+		backgroundWindow = (int) gd.getNextNumber();
+		streaming = gd.getNextBoolean();
+	}
+
+	public void readDetection(GenericDialog gd) {
+		// Read the fields of the SetupDetectionDialog, in the order they were added.
+		sigmaDOG = gd.getNextNumber();
+		DOGthreshold = gd.getNextNumber();
+		maxSpotDistance = (int) gd.getNextNumber();
+		tileSize = (int) gd.getNextNumber();
+		maxSpotMovement = gd.getNextNumber();
+		numberOfFramesInPast = (int) gd.getNextNumber();
+		globalLinking = gd.getNextChoice().startsWith("Global");
+		birthDeathCost = gd.getNextNumber();
+		betaDist = gd.getNextNumber();
+		betaIntensity = gd.getNextNumber();
+		betaSpeed = gd.getNextNumber();
+		betaAngle = gd.getNextNumber();
+	}
+
+	public static TrackingParameters load(String path) throws IOException {
+		// Read a parameter file. Parameters that are not in the file keep their default value.
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(path)) {
+			properties.load(in);
+		}
+		TrackingParameters p = new TrackingParameters();
+		p.sigmaXY = number(properties, "sigmaXY", p.sigmaXY);
+		p.sigmaT = number(properties, "sigmaT", p.sigmaT);
+		p.streaming = Boolean.parseBoolean(properties.getProperty("streaming", "" + p.streaming).trim());
+		p.backgroundWindow = (int) number(properties, "backgroundWindow", p.backgroundWindow);
+		p.sigmaDOG = number(properties, "sigmaDOG", p.sigmaDOG);
+		p.DOGthreshold = number(properties, "DOGthreshold", p.DOGthreshold);
+		p.maxSpotDistance = (int) number(properties, "maxSpotDistance", p.maxSpotDistance);
+		p.tileSize = (int) number(properties, "tileSize", p.tileSize);
+		p.maxSpotMovement = number(properties, "maxSpotMovement", p.maxSpotMovement);
+		p.numberOfFramesInPast = (int) number(properties, "numberOfFramesInPast", p.numberOfFramesInPast);
+		p.globalLinking = properties.getProperty("linking", "nearest").trim().equalsIgnoreCase("global");
+		p.birthDeathCost = number(properties, "birthDeathCost", p.birthDeathCost);
+		p.betaDist = number(properties, "betaDist", p.betaDist);
+		p.betaIntensity = number(properties, "betaIntensity", p.betaIntensity);
+		p.betaSpeed = number(properties, "betaSpeed", p.betaSpeed);
+		p.betaAngle = number(properties, "betaAngle", p.betaAngle);
+		return p;
+	}
+
+	private static double number(Properties properties, String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter " + key + " is not a number: " + value);
+		}
+	}
+}